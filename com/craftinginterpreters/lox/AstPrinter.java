@@ -87,6 +87,12 @@ class AstPrinter implements Expr.Visitor<String>
         return parenthesize(expr.operator.lexeme, expr.judge, expr.left, expr.right);
     }
 
+    @Override
+    public String visitInlineExpr(Expr.Inline expr)
+    {
+        return parenthesize("inline " + expr.function.name.lexeme, expr.body);
+    }
+
     private String parenthesize(String name, Expr... exprs)
     {
         StringBuilder builder = new StringBuilder();
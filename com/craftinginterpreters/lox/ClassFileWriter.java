@@ -0,0 +1,523 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 只够 JitCompiler 使用的最小 class 文件生成器。版本号取 49，
+// 这样校验器走类型推导，不需要生成 StackMapTable
+final class ClassFileWriter
+{
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int DCONST_0 = 0x0e;
+    static final int AALOAD = 0x32;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFileWriter(String name, String superName)
+    {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    byte[] toByteArray()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            // ACC_FINAL | ACC_SUPER
+            out.writeShort(0x0030);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields)
+            {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods)
+            {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException error)
+        {
+            throw new IllegalStateException(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    // 常量池按内容去重，key 带上类型前缀
+    private int constant(String key, int tag, int size, Entry entry)
+    {
+        Integer index = entries.get(key);
+        if (index != null) return index;
+        if (poolCount + size > 0xffff) throw new IllegalStateException("Constant pool overflow.");
+
+        try
+        {
+            poolOut.writeByte(tag);
+            entry.write(poolOut);
+        } catch (IOException error)
+        {
+            throw new IllegalStateException(error);
+        }
+        index = poolCount;
+        poolCount += size;
+        entries.put(key, index);
+        return index;
+    }
+
+    private interface Entry
+    {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    int utf8(String value)
+    {
+        return constant("U" + value, CONSTANT_UTF8, 1, out -> out.writeUTF(value));
+    }
+
+    int classRef(String name)
+    {
+        int nameIndex = utf8(name);
+        return constant("C" + name, CONSTANT_CLASS, 1, out -> out.writeShort(nameIndex));
+    }
+
+    int stringRef(String value)
+    {
+        int valueIndex = utf8(value);
+        return constant("S" + value, CONSTANT_STRING, 1, out -> out.writeShort(valueIndex));
+    }
+
+    int intRef(int value)
+    {
+        return constant("I" + value, CONSTANT_INTEGER, 1, out -> out.writeInt(value));
+    }
+
+    int doubleRef(double value)
+    {
+        long bits = Double.doubleToRawLongBits(value);
+        return constant("D" + bits, CONSTANT_DOUBLE, 2, out -> out.writeLong(bits));
+    }
+
+    private int nameAndType(String name, String descriptor)
+    {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        return constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, 1, out ->
+        {
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor)
+    {
+        int ownerIndex = classRef(owner);
+        int typeIndex = nameAndType(name, descriptor);
+        return constant("M" + tag + owner + "." + name + ":" + descriptor, tag, 1, out ->
+        {
+            out.writeShort(ownerIndex);
+            out.writeShort(typeIndex);
+        });
+    }
+
+    void field(int access, String name, String descriptor)
+    {
+        byte[] field = new byte[8];
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        field[0] = (byte) (access >> 8);
+        field[1] = (byte) access;
+        field[2] = (byte) (nameIndex >> 8);
+        field[3] = (byte) nameIndex;
+        field[4] = (byte) (descriptorIndex >> 8);
+        field[5] = (byte) descriptorIndex;
+        fields.add(field);
+    }
+
+    Code method(int access, String name, String descriptor)
+    {
+        return new Code(access, utf8(name), utf8(descriptor));
+    }
+
+    static final class Label
+    {
+        private int position = -1;
+        private int stackDepth = -1;
+    }
+
+    // 一个方法的字节码。一边生成一边跟踪操作数栈深度，得到 max_stack
+    final class Code
+    {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Integer> jumps = new ArrayList<>();
+        private final List<Label> targets = new ArrayList<>();
+        // 异常表，每项依次是 start、end、handler 三个标签和捕获的类
+        private final List<Label> handlers = new ArrayList<>();
+        private final List<Integer> catchTypes = new ArrayList<>();
+        private int stackDepth = 0;
+        private int maxStack = 0;
+        // 上一条是无条件跳转、返回或者 throw，之后的栈深度由跳到这里的指令决定
+        private boolean isReachable = true;
+
+        private Code(int access, int name, int descriptor)
+        {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        int size()
+        {
+            return code.size();
+        }
+
+        private void adjust(int effect)
+        {
+            stackDepth += effect;
+            if (stackDepth > maxStack) maxStack = stackDepth;
+        }
+
+        void op(int opcode, int effect)
+        {
+            code.write(opcode);
+            adjust(effect);
+            if (opcode == GOTO || opcode == ARETURN || opcode == RETURN || opcode == ATHROW) isReachable = false;
+        }
+
+        void op(int opcode)
+        {
+            int effect;
+            switch (opcode)
+            {
+                case ACONST_NULL:
+                case ICONST_0:
+                case ICONST_1:
+                case DUP:
+                    effect = 1;
+                    break;
+                case DCONST_0:
+                    effect = 2;
+                    break;
+                case AALOAD:
+                case POP:
+                case ARETURN:
+                case ATHROW:
+                    effect = -1;
+                    break;
+                case DADD:
+                case DSUB:
+                case DMUL:
+                case DDIV:
+                    effect = -2;
+                    break;
+                case DCMPL:
+                case DCMPG:
+                case AASTORE:
+                    effect = -3;
+                    break;
+                default:
+                    effect = 0;
+            }
+            op(opcode, effect);
+        }
+
+        void loadInt(int value)
+        {
+            if (value >= -1 && value <= 5)
+            {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            {
+                op(0x10, 1);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            {
+                op(0x11, 1);
+                writeShort(value);
+            } else
+            {
+                loadConstant(intRef(value), 1);
+            }
+        }
+
+        void loadString(String value)
+        {
+            loadConstant(stringRef(value), 1);
+        }
+
+        void loadClass(String className)
+        {
+            loadConstant(classRef(className), 1);
+        }
+
+        void loadDouble(double value)
+        {
+            // ldc2_w
+            op(0x14, 2);
+            writeShort(doubleRef(value));
+        }
+
+        private void loadConstant(int index, int effect)
+        {
+            if (index <= 0xff)
+            {
+                op(0x12, effect);
+                code.write(index);
+            } else
+            {
+                op(0x13, effect);
+                writeShort(index);
+            }
+        }
+
+        void load(int local)
+        {
+            if (local <= 3)
+            {
+                op(0x2a + local, 1);
+            } else
+            {
+                op(0x19, 1);
+                code.write(local);
+            }
+        }
+
+        void store(int local)
+        {
+            if (local <= 3)
+            {
+                op(0x4b + local, -1);
+            } else
+            {
+                op(0x3a, -1);
+                code.write(local);
+            }
+        }
+
+        void type(int opcode, String className)
+        {
+            op(opcode, opcode == NEW ? 1 : 0);
+            writeShort(classRef(className));
+        }
+
+        void field(int opcode, String owner, String name, String descriptor)
+        {
+            int size = descriptor.equals("D") || descriptor.equals("J") ? 2 : 1;
+            int effect;
+            switch (opcode)
+            {
+                case GETSTATIC:
+                    effect = size;
+                    break;
+                case GETFIELD:
+                    effect = size - 1;
+                    break;
+                case PUTSTATIC:
+                    effect = -size;
+                    break;
+                default:
+                    effect = -size - 1;
+            }
+            op(opcode, effect);
+            writeShort(memberRef(CONSTANT_FIELDREF, owner, name, descriptor));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor)
+        {
+            int arguments = argumentSize(descriptor);
+            int effect = returnSize(descriptor) - arguments - (opcode == INVOKESTATIC ? 0 : 1);
+            int tag = opcode == INVOKEINTERFACE ? CONSTANT_INTERFACE_METHODREF : CONSTANT_METHODREF;
+            op(opcode, effect);
+            writeShort(memberRef(tag, owner, name, descriptor));
+            if (opcode == INVOKEINTERFACE)
+            {
+                code.write(arguments + 1);
+                code.write(0);
+            }
+        }
+
+        void jump(int opcode, Label label)
+        {
+            int start = code.size();
+            op(opcode, jumpEffect(opcode));
+            if (label.stackDepth < 0) label.stackDepth = stackDepth;
+            jumps.add(start);
+            targets.add(label);
+            writeShort(0);
+        }
+
+        void mark(Label label)
+        {
+            if (!isReachable && label.stackDepth >= 0) stackDepth = label.stackDepth;
+            if (label.stackDepth < 0) label.stackDepth = stackDepth;
+            isReachable = true;
+            label.position = code.size();
+        }
+
+        // [start, end) 之间抛出 type 类的异常时跳到 handler。handler 处的栈上只有异常对象。
+        // 嵌套的范围要先登记里层的，JVM 按异常表的顺序查找
+        void handler(Label start, Label end, Label handler, String type)
+        {
+            if (handler.stackDepth < 0) handler.stackDepth = 1;
+            handlers.add(start);
+            handlers.add(end);
+            handlers.add(handler);
+            catchTypes.add(classRef(type));
+        }
+
+        // 分支指令的偏移只有 16 位，方法太大时由调用方放弃编译
+        void finish(int maxLocals)
+        {
+            if (code.size() > 0x7fff) throw new IllegalStateException("Method too large.");
+            byte[] bytecode = code.toByteArray();
+            for (int i = 0; i < jumps.size(); i++)
+            {
+                int start = jumps.get(i);
+                int offset = targets.get(i).position - start;
+                bytecode[start + 1] = (byte) (offset >> 8);
+                bytecode[start + 2] = (byte) offset;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try
+            {
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + bytecode.length + 8 * catchTypes.size());
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytecode.length);
+                out.write(bytecode);
+                out.writeShort(catchTypes.size());
+                for (int i = 0; i < catchTypes.size(); i++)
+                {
+                    out.writeShort(handlers.get(3 * i).position);
+                    out.writeShort(handlers.get(3 * i + 1).position);
+                    out.writeShort(handlers.get(3 * i + 2).position);
+                    out.writeShort(catchTypes.get(i));
+                }
+                out.writeShort(0);
+            } catch (IOException error)
+            {
+                throw new IllegalStateException(error);
+            }
+            methods.add(bytes.toByteArray());
+        }
+
+        private void writeShort(int value)
+        {
+            code.write(value >> 8);
+            code.write(value);
+        }
+    }
+
+    private static int jumpEffect(int opcode)
+    {
+        if (opcode == GOTO) return 0;
+        if (opcode == IF_ACMPEQ || opcode == IF_ACMPNE) return -2;
+        return -1;
+    }
+
+    private static int argumentSize(String descriptor)
+    {
+        int size = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')')
+        {
+            char c = descriptor.charAt(i);
+            if (c == 'D' || c == 'J')
+            {
+                size += 2;
+                i++;
+                continue;
+            }
+            size++;
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            i++;
+        }
+        return size;
+    }
+
+    private static int returnSize(String descriptor)
+    {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (c == 'V') return 0;
+        if (c == 'D' || c == 'J') return 2;
+        return 1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,329 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// 另一种执行引擎：Resolver 之后把语法树一次性转换成 ExprNode/StmtNode 组成的可执行节点树，
+// 之后执行时不再经过 accept/visit。运行时对象（函数、类、实例、全局表）与 Interpreter 共用
+class ClosureCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode>
+{
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    ClosureCompiler(Interpreter interpreter)
+    {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    void interpret(List<Stmt> statements, int frameSize)
+    {
+        try
+        {
+            StmtNode[] nodes = compile(statements);
+            Frame frame = new Frame(frameSize, globals);
+            for (StmtNode node : nodes)
+            {
+                node.execute(frame);
+            }
+        } catch (RuntimeError error)
+        {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private StmtNode[] compile(List<Stmt> statements)
+    {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++)
+        {
+            nodes[i] = statements.get(i).accept(this);
+        }
+        return nodes;
+    }
+
+    private ExprNode compile(Expr expr)
+    {
+        return expr.accept(this);
+    }
+
+    private StmtNode.Body compileFunction(Stmt.Function function)
+    {
+        StmtNode.Block block = new StmtNode.Block(compile(function.body), 0);
+        return new StmtNode.Body(function.frameSize, function.paramSlots, block);
+    }
+
+    // 声明只会落在当前帧、当前作用域的 Environment 或者全局表中
+    private StmtNode define(int depth, int slot, ExprNode value)
+    {
+        if (depth == Resolver.FRAME) return new StmtNode.DefineLocal(slot, value);
+        if (depth == Resolver.GLOBAL) return new StmtNode.DefineGlobal(globals, slot, value);
+        return new StmtNode.DefineCaptured(slot, value);
+    }
+
+    private ExprNode read(Token name, int depth, int slot)
+    {
+        if (depth == Resolver.FRAME) return new ExprNode.Local(slot);
+        if (depth >= 0) return new ExprNode.Captured(depth, slot);
+        return new ExprNode.Global(globals, slot, name);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt)
+    {
+        return new StmtNode.Block(compile(stmt.statements), stmt.envSize);
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt)
+    {
+        ExprNode superclass = stmt.superclass == null ? null : compile(stmt.superclass);
+        StmtNode.Body[] bodies = new StmtNode.Body[stmt.methods.size()];
+        for (int i = 0; i < bodies.length; i++)
+        {
+            bodies[i] = compileFunction(stmt.methods.get(i));
+        }
+        return new StmtNode.Class(globals, stmt, superclass, bodies);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt)
+    {
+        ExprNode expression = compile(stmt.expression);
+        if (!Lox.isInFile) return new StmtNode.Echo(expression);
+        return new StmtNode.Expression(expression);
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt)
+    {
+        return define(stmt.depth, stmt.slot, new ExprNode.Closure(stmt, compileFunction(stmt)));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt)
+    {
+        StmtNode elseBranch = stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        return new StmtNode.If(compile(stmt.condition), stmt.thenBranch.accept(this), elseBranch);
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt)
+    {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt)
+    {
+        return new StmtNode.Return(stmt.value == null ? null : compile(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt)
+    {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode body = stmt.body.accept(this);
+        ExprNode increment = stmt.increment == null ? null : compile(stmt.increment);
+        return new StmtNode.While(stmt, condition, body, increment);
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Stmt.Break stmt)
+    {
+        return new StmtNode.Jump(stmt.loop, Completion.BREAK);
+    }
+
+    @Override
+    public StmtNode visitContinueStmt(Stmt.Continue stmt)
+    {
+        return new StmtNode.Jump(stmt.loop, Completion.CONTINUE);
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt)
+    {
+        ExprNode value = stmt.initializer == null
+                         ? new ExprNode.Constant(Interpreter.UNINITIALIZED)
+                         : compile(stmt.initializer);
+        return define(stmt.depth, stmt.slot, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr)
+    {
+        ExprNode left = compile(expr.left);
+        // 右边是数字字面量时把它直接存进节点
+        Expr operand = unwrap(expr.right);
+        if (operand instanceof Expr.Literal && ((Expr.Literal) operand).value instanceof Double)
+        {
+            double constant = (double) ((Expr.Literal) operand).value;
+            switch (expr.operator.type)
+            {
+                case PLUS:
+                    return new ExprNode.AddConstant(left, constant, expr.operator);
+                case MINUS:
+                    return new ExprNode.SubtractConstant(left, constant, expr.operator);
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                    return new ExprNode.CompareConstant(left, constant, expr.operator);
+            }
+        }
+
+        ExprNode right = compile(expr.right);
+        switch (expr.operator.type)
+        {
+            case PLUS:
+                return new ExprNode.Add(left, right, expr.operator);
+            case MINUS:
+                return new ExprNode.Subtract(left, right, expr.operator);
+            case STAR:
+                return new ExprNode.Multiply(left, right, expr.operator);
+            case SLASH:
+                return new ExprNode.Divide(left, right, expr.operator);
+            case GREATER:
+                return new ExprNode.Greater(left, right, expr.operator);
+            case GREATER_EQUAL:
+                return new ExprNode.GreaterEqual(left, right, expr.operator);
+            case LESS:
+                return new ExprNode.Less(left, right, expr.operator);
+            case LESS_EQUAL:
+                return new ExprNode.LessEqual(left, right, expr.operator);
+            case EQUAL_EQUAL:
+                return new ExprNode.Equal(left, right, expr.operator, false);
+            case BANG_EQUAL:
+                return new ExprNode.Equal(left, right, expr.operator, true);
+            case COMMA:
+                return new ExprNode.Comma(left, right);
+        }
+
+        // Unreachable.
+        assert (false);
+        return null;
+    }
+
+    private static Expr unwrap(Expr expr)
+    {
+        while (expr instanceof Expr.Grouping)
+        {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr)
+    {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++)
+        {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        if (expr.site == null) expr.site = new LoxCallSite(expr.paren, arguments.length);
+        if (expr.callee instanceof Expr.Get)
+        {
+            Expr.Get get = (Expr.Get) expr.callee;
+            return new ExprNode.InvokeProperty(interpreter, compile(get.object), get.name, arguments, expr.site,
+                                               expr.isTailCall);
+        }
+        if (expr.callee instanceof Expr.Super)
+        {
+            Expr.Super method = (Expr.Super) expr.callee;
+            return new ExprNode.InvokeSuper(interpreter, method, compile(method.receiver), arguments, expr.site,
+                                            expr.isTailCall);
+        }
+        return new ExprNode.Call(interpreter, compile(expr.callee), arguments, expr.site, expr.isTailCall);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr)
+    {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return new ExprNode.Get(compile(expr.object), expr.name, expr.cache);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr)
+    {
+        ExprNode value = compile(expr.value);
+        if (expr.depth == Resolver.FRAME) return new ExprNode.AssignLocal(expr.slot, value);
+        if (expr.depth >= 0) return new ExprNode.AssignCaptured(expr.depth, expr.slot, value);
+        return new ExprNode.AssignGlobal(globals, expr.slot, expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr)
+    {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr)
+    {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr)
+    {
+        if (expr.operator.type == TokenType.OR)
+        {
+            return new ExprNode.Or(compile(expr.left), compile(expr.right));
+        }
+        return new ExprNode.And(compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr)
+    {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value), expr.cache);
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr)
+    {
+        return read(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr)
+    {
+        return new ExprNode.Super(expr.depth, expr.slot, compile(expr.receiver), expr.method);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr)
+    {
+        if (expr.operator.type == TokenType.BANG) return new ExprNode.Not(compile(expr.right));
+        return new ExprNode.Negate(compile(expr.right), expr.operator);
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr)
+    {
+        ExprNode variable = read(expr.name, expr.depth, expr.slot);
+        // Resolver 证明已经赋过值的地方不需要检查
+        if (expr.isInitialized) return variable;
+        return new ExprNode.Uninitialized(variable, expr.name, expr.isOperand);
+    }
+
+    @Override
+    public ExprNode visitThreeWayExpr(Expr.ThreeWay expr)
+    {
+        return new ExprNode.ThreeWay(interpreter, compile(expr.judge), compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitInlineExpr(Expr.Inline expr)
+    {
+        ExprNode[] arguments = new ExprNode[expr.call.arguments.size()];
+        for (int i = 0; i < arguments.length; i++)
+        {
+            arguments[i] = compile(expr.call.arguments.get(i));
+        }
+        return new ExprNode.Inline(compile(expr.call.callee), expr.function, expr.slot, arguments, compile(expr.body),
+                                   compile(expr.call));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox;
+
+// JitCompiler 生成的类的基类。生成的代码用到的 Token、语法树节点等对象放在 constants 中，
+// 按下标取出
+abstract class CompiledFunction
+{
+    final Stmt.Function declaration;
+    final Object[] constants;
+
+    CompiledFunction(Stmt.Function declaration, Object[] constants)
+    {
+        this.declaration = declaration;
+        this.constants = constants;
+    }
+
+    // 返回 return 语句的值，没有执行 return 时返回 nil。普通函数的 receiver 为 null。
+    // 每个生成的类都实现数组版本：超过三个参数时它就是函数体，否则由它取出参数转给按参数个数生成的方法
+    abstract Object invoke(Interpreter interpreter, Environment closure, LoxInstance receiver, Object[] arguments);
+
+    // 不超过三个参数时生成的类覆盖与参数个数对应的方法，调用时不分配参数数组
+    Object invoke0(Interpreter interpreter, Environment closure, LoxInstance receiver)
+    {
+        return invoke(interpreter, closure, receiver, new Object[0]);
+    }
+
+    Object invoke1(Interpreter interpreter, Environment closure, LoxInstance receiver, Object a)
+    {
+        return invoke(interpreter, closure, receiver, new Object[]{a});
+    }
+
+    Object invoke2(Interpreter interpreter, Environment closure, LoxInstance receiver, Object a, Object b)
+    {
+        return invoke(interpreter, closure, receiver, new Object[]{a, b});
+    }
+
+    Object invoke3(Interpreter interpreter, Environment closure, LoxInstance receiver, Object a, Object b,
+                   Object c)
+    {
+        return invoke(interpreter, closure, receiver, new Object[]{a, b, c});
+    }
+}
\ No newline at end of file
@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+// 语句执行结束的方式。RETURN 的值放在 Interpreter.returnValue 或者 Frame.returnValue 中，
+// 由 LoxFunction 取走；BREAK 和 CONTINUE 的目标循环同样记在解释器或者 Frame 中，由那个循环接住
+enum Completion
+{
+    NORMAL,
+    RETURN,
+    BREAK,
+    CONTINUE
+}
\ No newline at end of file
@@ -1,53 +1,77 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 class Environment
 {
+    // 已经分配了下标但还没有被定义的全局变量
+    private static final Object UNDEFINED = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // 只有全局作用域有名字表：解析时为每个全局名字分配固定下标，值同样存放在 slots 中
+    private final Map<String, Integer> indices;
+    private Object[] slots;
+    private int count = 0;
 
     Environment()
     {
         enclosing = null;
+        indices = new HashMap<>();
+        slots = new Object[16];
     }
 
-    Environment(Environment enclosing)
+    // 局部环境只保存被闭包捕获的变量，大小由 Resolver 算出
+    Environment(Environment enclosing, int size)
     {
         this.enclosing = enclosing;
+        indices = null;
+        slots = new Object[size];
     }
 
-    Object get(Token name)
+    int indexOf(String name)
     {
-        if (values.containsKey(name.lexeme))
+        Integer index = indices.get(name);
+        if (index != null) return index;
+
+        if (count == slots.length)
         {
-            return values.get(name.lexeme);
+            slots = Arrays.copyOf(slots, count * 2);
         }
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        slots[count] = UNDEFINED;
+        indices.put(name, count);
+        return count++;
     }
 
-    void assign(Token name, Object value)
+    Object getGlobal(int index, Token name)
     {
-        if (values.containsKey(name.lexeme))
+        Object value = slots[index];
+        if (value == UNDEFINED)
         {
-            values.put(name.lexeme, value);
-            return;
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
         }
-        if (enclosing != null)
+        return value;
+    }
+
+    void assignGlobal(int index, Token name, Object value)
+    {
+        if (slots[index] == UNDEFINED)
         {
-            enclosing.assign(name, value);
-            return;
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
         }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        slots[index] = value;
     }
 
     void define(String name, Object value)
     {
-        values.put(name, value);
+        int index = indexOf(name);
+        slots[index] = value;
+    }
+
+    void defineGlobal(int index, Object value)
+    {
+        slots[index] = value;
     }
 
     Environment ancestor(int distance)
@@ -63,14 +87,14 @@ class Environment
     }
 
     // get and getAt
-    Object getAt(int distance, String name)
+    Object getAt(int distance, int slot)
     {
-        return ancestor(distance).values.get(name);
+        return ancestor(distance).slots[slot];
     }
 
     // assign and assignAt
-    void assignAt(int distance, Token name, Object value)
+    void assignAt(int distance, int slot, Object value)
     {
-        ancestor(distance).values.put(name.lexeme, value);
+        ancestor(distance).slots[slot] = value;
     }
 }
\ No newline at end of file
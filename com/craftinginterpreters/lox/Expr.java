@@ -2,8 +2,8 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Expr {
-  interface Visitor<R> {
+public abstract class Expr {
+  public interface Visitor<R> {
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
     R visitGetExpr(Get expr);
@@ -17,8 +17,9 @@ abstract class Expr {
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
     R visitThreeWayExpr(ThreeWay expr);
+    R visitInlineExpr(Inline expr);
   }
-  static class Binary extends Expr {
+  public static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -26,15 +27,16 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBinaryExpr(this);
     }
 
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
+    public int specialization;
   }
-  static class Call extends Expr {
+  public static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
       this.callee = callee;
       this.paren = paren;
@@ -42,67 +44,72 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitCallExpr(this);
     }
 
-    final Expr callee;
-    final Token paren;
-    final List<Expr> arguments;
+    public final Expr callee;
+    public final Token paren;
+    public final List<Expr> arguments;
+    public LoxCallSite site;
+    public boolean isTailCall;
   }
-  static class Get extends Expr {
+  public static class Get extends Expr {
     Get(Expr object, Token name) {
       this.object = object;
       this.name = name;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGetExpr(this);
     }
 
-    final Expr object;
-    final Token name;
+    public final Expr object;
+    public final Token name;
+    public PropertyCache cache;
   }
-  static class Assign extends Expr {
+  public static class Assign extends Expr {
     Assign(Token name, Expr value) {
       this.name = name;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitAssignExpr(this);
     }
 
-    final Token name;
-    final Expr value;
+    public final Token name;
+    public final Expr value;
+    public int depth = -1;
+    public int slot;
   }
-  static class Grouping extends Expr {
+  public static class Grouping extends Expr {
     Grouping(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGroupingExpr(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class Literal extends Expr {
+  public static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLiteralExpr(this);
     }
 
-    final Object value;
+    public final Object value;
   }
-  static class Logical extends Expr {
+  public static class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -110,15 +117,15 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLogicalExpr(this);
     }
 
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
   }
-  static class Set extends Expr {
+  public static class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
       this.object = object;
       this.name = name;
@@ -126,67 +133,78 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitSetExpr(this);
     }
 
-    final Expr object;
-    final Token name;
-    final Expr value;
+    public final Expr object;
+    public final Token name;
+    public final Expr value;
+    public PropertyCache cache;
   }
-  static class This extends Expr {
+  public static class This extends Expr {
     This(Token keyword) {
       this.keyword = keyword;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitThisExpr(this);
     }
 
-    final Token keyword;
+    public final Token keyword;
+    public int depth = -1;
+    public int slot;
   }
-  static class Super extends Expr {
+  public static class Super extends Expr {
     Super(Token keyword, Token method) {
       this.keyword = keyword;
       this.method = method;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitSuperExpr(this);
     }
 
-    final Token keyword;
-    final Token method;
+    public final Token keyword;
+    public final Token method;
+    public int depth = -1;
+    public int slot;
+    public Expr.This receiver;
   }
-  static class Unary extends Expr {
+  public static class Unary extends Expr {
     Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitUnaryExpr(this);
     }
 
-    final Token operator;
-    final Expr right;
+    public final Token operator;
+    public final Expr right;
+    public int specialization;
   }
-  static class Variable extends Expr {
+  public static class Variable extends Expr {
     Variable(Token name) {
       this.name = name;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVariableExpr(this);
     }
 
-    final Token name;
+    public final Token name;
+    public int depth = -1;
+    public int slot;
+    public boolean isOperand;
+    public boolean isInitialized;
   }
-  static class ThreeWay extends Expr {
+  public static class ThreeWay extends Expr {
     ThreeWay(Expr judge, Token operator, Expr left, Expr right) {
       this.judge = judge;
       this.operator = operator;
@@ -195,15 +213,34 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitThreeWayExpr(this);
     }
 
-    final Expr judge;
-    final Token operator;
-    final Expr left;
-    final Expr right;
+    public final Expr judge;
+    public final Token operator;
+    public final Expr left;
+    public final Expr right;
+  }
+  public static class Inline extends Expr {
+    Inline(Expr.Call call, Stmt.Function function, List<Token> params, Expr body) {
+      this.call = call;
+      this.function = function;
+      this.params = params;
+      this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+
+    public final Expr.Call call;
+    public final Stmt.Function function;
+    public final List<Token> params;
+    public final Expr body;
+    public int slot;
   }
 
-  abstract <R> R accept(Visitor<R> visitor);
+  public abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,889 @@
+package com.craftinginterpreters.lox;
+
+// 表达式编译后的可执行节点。运算符、变量地址和常量运算数在编译时就确定下来，
+// 每种节点只做一件事，execute 不再经过 Visitor 的两次分派
+abstract class ExprNode
+{
+    abstract Object execute(Frame frame);
+
+    static final class Constant extends ExprNode
+    {
+        private final Object value;
+
+        Constant(Object value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return value;
+        }
+    }
+
+    static final class Local extends ExprNode
+    {
+        private final int slot;
+
+        Local(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return frame.slots[slot];
+        }
+    }
+
+    // 被闭包捕获的变量，this 和 super 也在这里
+    static final class Captured extends ExprNode
+    {
+        private final int depth;
+        private final int slot;
+
+        Captured(int depth, int slot)
+        {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return frame.environment.getAt(depth, slot);
+        }
+    }
+
+    static final class Global extends ExprNode
+    {
+        private final Environment globals;
+        private final int slot;
+        private final Token name;
+
+        Global(Environment globals, int slot, Token name)
+        {
+            this.globals = globals;
+            this.slot = slot;
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return globals.getGlobal(slot, name);
+        }
+    }
+
+    // 只包在 Resolver 不能证明已经赋过值的变量外面
+    static final class Uninitialized extends ExprNode
+    {
+        private final ExprNode variable;
+        private final Token name;
+        private final boolean isOperand;
+
+        Uninitialized(ExprNode variable, Token name, boolean isOperand)
+        {
+            this.variable = variable;
+            this.name = name;
+            this.isOperand = isOperand;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object value = variable.execute(frame);
+            if (value != Interpreter.UNINITIALIZED) return value;
+            if (isOperand)
+            {
+                throw new RuntimeError(name, "Uninitialized variable '" + name.lexeme + "'.");
+            }
+            return null;
+        }
+    }
+
+    static final class AssignLocal extends ExprNode
+    {
+        private final int slot;
+        private final ExprNode value;
+
+        AssignLocal(int slot, ExprNode value)
+        {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return frame.slots[slot] = value.execute(frame);
+        }
+    }
+
+    static final class AssignCaptured extends ExprNode
+    {
+        private final int depth;
+        private final int slot;
+        private final ExprNode value;
+
+        AssignCaptured(int depth, int slot, ExprNode value)
+        {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object result = value.execute(frame);
+            frame.environment.assignAt(depth, slot, result);
+            return result;
+        }
+    }
+
+    static final class AssignGlobal extends ExprNode
+    {
+        private final Environment globals;
+        private final int slot;
+        private final Token name;
+        private final ExprNode value;
+
+        AssignGlobal(Environment globals, int slot, Token name, ExprNode value)
+        {
+            this.globals = globals;
+            this.slot = slot;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object result = value.execute(frame);
+            globals.assignGlobal(slot, name, result);
+            return result;
+        }
+    }
+
+    static final class Add extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        Add(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            if (a instanceof Double && b instanceof Double) return (double) a + (double) b;
+            if (a instanceof String && b instanceof String) return (String) a + (String) b;
+            if (a instanceof String && b instanceof Double) return (String) a + Interpreter.stringify(b);
+            if (a instanceof Double && b instanceof String) return Interpreter.stringify(a) + (String) b;
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+    }
+
+    // 右边是数字字面量的加法，例如 i + 1
+    static final class AddConstant extends ExprNode
+    {
+        private final ExprNode left;
+        private final double constant;
+        private final String text;
+        private final Token operator;
+
+        AddConstant(ExprNode left, double constant, Token operator)
+        {
+            this.left = left;
+            this.constant = constant;
+            this.text = Interpreter.stringify(constant);
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            if (a instanceof Double) return (double) a + constant;
+            if (a instanceof String) return (String) a + text;
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+    }
+
+    static final class Subtract extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        Subtract(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            return (double) a - (double) b;
+        }
+    }
+
+    static final class SubtractConstant extends ExprNode
+    {
+        private final ExprNode left;
+        private final double constant;
+        private final Token operator;
+
+        SubtractConstant(ExprNode left, double constant, Token operator)
+        {
+            this.left = left;
+            this.constant = constant;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            if (!(a instanceof Double)) throw new RuntimeError(operator, "Operands must be numbers.");
+            return (double) a - constant;
+        }
+    }
+
+    // 与解释器一致，乘除法不检查运算数类型
+    static final class Multiply extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        Multiply(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            return (double) a * (double) b;
+        }
+    }
+
+    static final class Divide extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        Divide(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            if ((double) b == 0) throw new RuntimeError(operator, "Divide by zero.");
+            return (double) a / (double) b;
+        }
+    }
+
+    static final class Greater extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        Greater(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            return (double) a > (double) b;
+        }
+    }
+
+    static final class GreaterEqual extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        GreaterEqual(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            return (double) a >= (double) b;
+        }
+    }
+
+    static final class Less extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        Less(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            return (double) a < (double) b;
+        }
+    }
+
+    static final class LessEqual extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+
+        LessEqual(ExprNode left, ExprNode right, Token operator)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            return (double) a <= (double) b;
+        }
+    }
+
+    // 右边是数字字面量的比较，例如 i < 100
+    static final class CompareConstant extends ExprNode
+    {
+        private final ExprNode left;
+        private final double constant;
+        private final TokenType type;
+        private final Token operator;
+
+        CompareConstant(ExprNode left, double constant, Token operator)
+        {
+            this.left = left;
+            this.constant = constant;
+            this.type = operator.type;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            if (!(a instanceof Double)) throw new RuntimeError(operator, "Operands must be numbers.");
+            double value = (double) a;
+            switch (type)
+            {
+                case GREATER:
+                    return value > constant;
+                case GREATER_EQUAL:
+                    return value >= constant;
+                case LESS:
+                    return value < constant;
+                default:
+                    return value <= constant;
+            }
+        }
+    }
+
+    static final class Equal extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+        private final Token operator;
+        private final boolean negate;
+
+        Equal(ExprNode left, ExprNode right, Token operator, boolean negate)
+        {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+            this.negate = negate;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            checkNumberOperands(operator, a, b);
+            return a.equals(b) != negate;
+        }
+    }
+
+    static final class Comma extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+
+        Comma(ExprNode left, ExprNode right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            left.execute(frame);
+            return right.execute(frame);
+        }
+    }
+
+    static final class Negate extends ExprNode
+    {
+        private final ExprNode right;
+        private final Token operator;
+
+        Negate(ExprNode right, Token operator)
+        {
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object value = right.execute(frame);
+            if (!(value instanceof Double)) throw new RuntimeError(operator, "Operand must be a number.");
+            return -(double) value;
+        }
+    }
+
+    static final class Not extends ExprNode
+    {
+        private final ExprNode right;
+
+        Not(ExprNode right)
+        {
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return !Interpreter.isTruthy(right.execute(frame));
+        }
+    }
+
+    static final class And extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+
+        And(ExprNode left, ExprNode right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object value = left.execute(frame);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.execute(frame);
+        }
+    }
+
+    static final class Or extends ExprNode
+    {
+        private final ExprNode left;
+        private final ExprNode right;
+
+        Or(ExprNode left, ExprNode right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object value = left.execute(frame);
+            if (Interpreter.isTruthy(value)) return value;
+            return right.execute(frame);
+        }
+    }
+
+    // 与解释器一致，三个运算数都会被求值
+    static final class ThreeWay extends ExprNode
+    {
+        private final Interpreter interpreter;
+        private final ExprNode judge;
+        private final ExprNode left;
+        private final ExprNode right;
+
+        ThreeWay(Interpreter interpreter, ExprNode judge, ExprNode left, ExprNode right)
+        {
+            this.interpreter = interpreter;
+            this.judge = judge;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object condition = judge.execute(frame);
+            Object a = left.execute(frame);
+            Object b = right.execute(frame);
+            if (!Interpreter.isTruthy(condition)) return b;
+            // 右分支登记的尾调用用不到它的值，但调用本身仍然要执行
+            if (b == Interpreter.TAIL_CALL) interpreter.trampoline();
+            return a;
+        }
+    }
+
+    // 调用表达式的公共部分：JVM 栈溢出在这里转成调用点的运行时错误
+    abstract static class SiteCall extends ExprNode
+    {
+        final LoxCallSite site;
+
+        SiteCall(LoxCallSite site)
+        {
+            this.site = site;
+        }
+
+        abstract Object call(Frame frame);
+
+        // 超过三个参数以及尾调用时参数放在数组中传递，从左到右求值
+        static Object[] values(ExprNode[] arguments, Frame frame)
+        {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = arguments[i].execute(frame);
+            }
+            return values;
+        }
+
+        @Override
+        final Object execute(Frame frame)
+        {
+            try
+            {
+                return call(frame);
+            } catch (StackOverflowError overflow)
+            {
+                throw site.overflow();
+            }
+        }
+    }
+
+    static final class Call extends SiteCall
+    {
+        private final Interpreter interpreter;
+        private final ExprNode callee;
+        private final ExprNode[] arguments;
+        private final boolean isTailCall;
+
+        Call(Interpreter interpreter, ExprNode callee, ExprNode[] arguments, LoxCallSite site, boolean isTailCall)
+        {
+            super(site);
+            this.interpreter = interpreter;
+            this.callee = callee;
+            this.arguments = arguments;
+            this.isTailCall = isTailCall;
+        }
+
+        @Override
+        Object call(Frame frame)
+        {
+            Object function = callee.execute(frame);
+            // 尾调用由调用点登记，返回 TAIL_CALL，在当前函数的帧释放之后由 LoxFunction 执行
+            if (isTailCall) return site.tailCall(function, interpreter, values(arguments, frame));
+            switch (arguments.length)
+            {
+                case 0:
+                    return site.call0(function, interpreter);
+                case 1:
+                    return site.call1(function, interpreter, arguments[0].execute(frame));
+                case 2:
+                    return site.call2(function, interpreter, arguments[0].execute(frame), arguments[1].execute(frame));
+                case 3:
+                    return site.call3(function, interpreter, arguments[0].execute(frame), arguments[1].execute(frame),
+                                      arguments[2].execute(frame));
+            }
+            return site.call(function, interpreter, values(arguments, frame));
+        }
+    }
+
+    // obj.method(...) 和 super.method(...)：接收者直接传给方法，不创建绑定后的函数
+    abstract static class Invoke extends SiteCall
+    {
+        private final Interpreter interpreter;
+        private final ExprNode object;
+        private final ExprNode[] arguments;
+        private final boolean isTailCall;
+
+        Invoke(Interpreter interpreter, ExprNode object, ExprNode[] arguments, LoxCallSite site, boolean isTailCall)
+        {
+            super(site);
+            this.interpreter = interpreter;
+            this.object = object;
+            this.arguments = arguments;
+            this.isTailCall = isTailCall;
+        }
+
+        // 在参数求值之前取得被调用的方法
+        abstract Object method(Frame frame, Object receiver);
+
+        @Override
+        Object call(Frame frame)
+        {
+            Object receiver = object.execute(frame);
+            Object function = method(frame, receiver);
+            if (isTailCall) return site.tailInvoke(function, receiver, interpreter, values(arguments, frame));
+            switch (arguments.length)
+            {
+                case 0:
+                    return site.invoke0(function, receiver, interpreter);
+                case 1:
+                    return site.invoke1(function, receiver, interpreter, arguments[0].execute(frame));
+                case 2:
+                    return site.invoke2(function, receiver, interpreter, arguments[0].execute(frame),
+                                        arguments[1].execute(frame));
+                case 3:
+                    return site.invoke3(function, receiver, interpreter, arguments[0].execute(frame),
+                                        arguments[1].execute(frame), arguments[2].execute(frame));
+            }
+            return site.invoke(function, receiver, interpreter, values(arguments, frame));
+        }
+    }
+
+    static final class InvokeProperty extends Invoke
+    {
+        private final Token name;
+
+        InvokeProperty(Interpreter interpreter, ExprNode object, Token name, ExprNode[] arguments, LoxCallSite site,
+                       boolean isTailCall)
+        {
+            super(interpreter, object, arguments, site, isTailCall);
+            this.name = name;
+        }
+
+        @Override
+        Object method(Frame frame, Object receiver)
+        {
+            return site.method(receiver, name);
+        }
+    }
+
+    static final class InvokeSuper extends Invoke
+    {
+        private final int depth;
+        private final int slot;
+        private final Token method;
+
+        InvokeSuper(Interpreter interpreter, Expr.Super expr, ExprNode receiver, ExprNode[] arguments,
+                    LoxCallSite site, boolean isTailCall)
+        {
+            super(interpreter, receiver, arguments, site, isTailCall);
+            this.depth = expr.depth;
+            this.slot = expr.slot;
+            this.method = expr.method;
+        }
+
+        @Override
+        Object method(Frame frame, Object receiver)
+        {
+            return Super.find(frame.environment, depth, slot, method);
+        }
+    }
+
+    static final class Get extends ExprNode
+    {
+        private final ExprNode object;
+        private final Token name;
+        private final PropertyCache cache;
+
+        Get(ExprNode object, Token name, PropertyCache cache)
+        {
+            this.object = object;
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return cache.get(object.execute(frame), name);
+        }
+    }
+
+    static final class Set extends ExprNode
+    {
+        private final ExprNode object;
+        private final Token name;
+        private final ExprNode value;
+        private final PropertyCache cache;
+
+        Set(ExprNode object, Token name, ExprNode value, PropertyCache cache)
+        {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+            this.cache = cache;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            Object instance = object.execute(frame);
+            if (!(instance instanceof LoxInstance))
+            {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            return cache.set(instance, name, value.execute(frame));
+        }
+    }
+
+    static final class Super extends ExprNode
+    {
+        private final int depth;
+        private final int slot;
+        private final ExprNode receiver;
+        private final Token method;
+
+        Super(int depth, int slot, ExprNode receiver, Token method)
+        {
+            this.depth = depth;
+            this.slot = slot;
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            LoxFunction function = find(frame.environment, depth, slot, method);
+            return function.bind((LoxInstance) receiver.execute(frame));
+        }
+
+        // 父类的方法在创建类时已经查好，放在 Resolver 为这个 super.method 分配的槽位上
+        static LoxFunction find(Environment environment, int depth, int slot, Token method)
+        {
+            LoxFunction function = (LoxFunction) environment.getAt(depth, slot);
+            if (function == null)
+            {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+            return function;
+        }
+    }
+
+    // 函数声明在执行时捕获当前的 Environment，函数体在编译时已经编译好
+    static final class Closure extends ExprNode
+    {
+        private final Stmt.Function declaration;
+        private final StmtNode.Body body;
+
+        Closure(Stmt.Function declaration, StmtNode.Body body)
+        {
+            this.declaration = declaration;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            return new LoxFunction(declaration, frame.environment, false, body);
+        }
+    }
+
+    // 内联的调用点：被调用的仍是内联的那个函数时在当前帧中执行复制过来的函数体，否则执行原来的调用
+    static final class Inline extends ExprNode
+    {
+        private final ExprNode callee;
+        private final Stmt.Function function;
+        private final int slot;
+        private final ExprNode[] arguments;
+        private final ExprNode body;
+        private final ExprNode call;
+
+        Inline(ExprNode callee, Stmt.Function function, int slot, ExprNode[] arguments, ExprNode body, ExprNode call)
+        {
+            this.callee = callee;
+            this.function = function;
+            this.slot = slot;
+            this.arguments = arguments;
+            this.body = body;
+            this.call = call;
+        }
+
+        @Override
+        Object execute(Frame frame)
+        {
+            if (!Interpreter.isInlined(callee.execute(frame), function)) return call.execute(frame);
+            for (int i = 0; i < arguments.length; i++)
+            {
+                frame.slots[slot + i] = arguments[i].execute(frame);
+            }
+            return body.execute(frame);
+        }
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right)
+    {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+// 编译执行时一次调用的活动记录：没有被捕获的局部变量放在 slots 中，
+// environment 是当前作用域对应的 Environment，进出带捕获变量的块时切换
+class Frame
+{
+    final Object[] slots;
+    Environment environment;
+    // return 语句的值，以及 break、continue 的目标循环
+    Object returnValue = null;
+    Stmt.While loopTarget = null;
+
+    Frame(int size, Environment environment)
+    {
+        this.slots = new Object[size];
+        this.environment = environment;
+    }
+}
\ No newline at end of file
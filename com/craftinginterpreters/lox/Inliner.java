@@ -0,0 +1,245 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// 把对短小全局函数的调用换成 Expr.Inline。能内联的函数：函数体只有一条 return，返回值只用到参数并且不超过 MAX_SIZE 个节点，
+// 函数名在全局只声明一次，从来没有被赋值，也没有同名的局部变量或参数。
+// 返回值的表达式复制到每个调用点，参数改成源代码中写不出来的名字，作为调用点所在帧中的局部变量。
+// 运行时全局变量仍是这个声明创建的函数时才执行内联的函数体，否则按原来的调用执行
+class Inliner extends Rewriter
+{
+    static final int MAX_SIZE = 16;
+
+    private final Map<String, Stmt.Function> candidates = new HashMap<>();
+
+    List<Stmt> inline(List<Stmt> statements)
+    {
+        Names names = new Names();
+        names.rewrite(statements);
+        for (Stmt statement : statements)
+        {
+            if (!(statement instanceof Stmt.Function)) continue;
+            Stmt.Function function = (Stmt.Function) statement;
+            String name = function.name.lexeme;
+            if (names.globals.get(name) != 1 || names.locals.contains(name) || names.assigned.contains(name)) continue;
+            if (valueOf(function) != null) candidates.put(name, function);
+        }
+        if (candidates.isEmpty()) return statements;
+        return rewrite(statements);
+    }
+
+    // 先内联实参中的调用，再处理这个调用本身
+    @Override
+    public Expr visitCallExpr(Expr.Call expr)
+    {
+        Expr.Call call = (Expr.Call) super.visitCallExpr(expr);
+        if (!(expr.callee instanceof Expr.Variable)) return call;
+        Stmt.Function function = candidates.get(((Expr.Variable) expr.callee).name.lexeme);
+        // 参数个数不对的调用留给运行时报错
+        if (function == null || function.params.size() != expr.arguments.size()) return call;
+
+        // 原来的调用节点可能带着 Resolver 写上的尾调用标记，运行时退回普通调用时不能当作尾调用
+        if (call == expr) call = new Expr.Call(expr.callee, expr.paren, expr.arguments);
+        Map<String, Token> renamed = new HashMap<>();
+        List<Token> params = new ArrayList<>();
+        for (Token param : function.params)
+        {
+            Token local = new Token(TokenType.IDENTIFIER, function.name.lexeme + "." + param.lexeme, null, param.line);
+            renamed.put(param.lexeme, local);
+            params.add(local);
+        }
+        return new Expr.Inline(call, function, params, copy(valueOf(function), renamed));
+    }
+
+    // 可以内联时返回 return 的值，否则返回 null
+    private static Expr valueOf(Stmt.Function function)
+    {
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) return null;
+        Expr value = ((Stmt.Return) function.body.get(0)).value;
+        if (value == null || size(value, function.params) > MAX_SIZE) return null;
+        return value;
+    }
+
+    // 表达式的节点个数。用到参数以外的变量，或者含有不能复制的节点时返回超过 MAX_SIZE 的值
+    private static int size(Expr expr, List<Token> params)
+    {
+        final int tooBig = MAX_SIZE + 1;
+        if (expr instanceof Expr.Literal) return 1;
+        if (expr instanceof Expr.Variable) return isParam(((Expr.Variable) expr).name, params) ? 1 : tooBig;
+        if (expr instanceof Expr.Assign)
+        {
+            Expr.Assign assign = (Expr.Assign) expr;
+            if (!isParam(assign.name, params)) return tooBig;
+            return 1 + size(assign.value, params);
+        }
+        if (expr instanceof Expr.Binary)
+        {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return 1 + size(binary.left, params) + size(binary.right, params);
+        }
+        if (expr instanceof Expr.Logical)
+        {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return 1 + size(logical.left, params) + size(logical.right, params);
+        }
+        if (expr instanceof Expr.ThreeWay)
+        {
+            Expr.ThreeWay threeWay = (Expr.ThreeWay) expr;
+            return 1 + size(threeWay.judge, params) + size(threeWay.left, params) + size(threeWay.right, params);
+        }
+        if (expr instanceof Expr.Unary) return 1 + size(((Expr.Unary) expr).right, params);
+        if (expr instanceof Expr.Grouping) return 1 + size(((Expr.Grouping) expr).expression, params);
+        if (expr instanceof Expr.Get) return 1 + size(((Expr.Get) expr).object, params);
+        if (expr instanceof Expr.Set)
+        {
+            Expr.Set set = (Expr.Set) expr;
+            return 1 + size(set.object, params) + size(set.value, params);
+        }
+        if (expr instanceof Expr.Call)
+        {
+            Expr.Call call = (Expr.Call) expr;
+            int size = 1 + size(call.callee, params);
+            for (Expr argument : call.arguments)
+            {
+                size += size(argument, params);
+            }
+            return size;
+        }
+        return tooBig;
+    }
+
+    private static boolean isParam(Token name, List<Token> params)
+    {
+        for (Token param : params)
+        {
+            if (param.lexeme.equals(name.lexeme)) return true;
+        }
+        return false;
+    }
+
+    // 每个调用点都要有自己的节点，Resolver 和解释器会在节点上记下变量地址、类型特化和内联缓存
+    private static Expr copy(Expr expr, Map<String, Token> renamed)
+    {
+        if (expr instanceof Expr.Literal) return expr;
+        if (expr instanceof Expr.Variable) return new Expr.Variable(renamed.get(((Expr.Variable) expr).name.lexeme));
+        if (expr instanceof Expr.Assign)
+        {
+            Expr.Assign assign = (Expr.Assign) expr;
+            return new Expr.Assign(renamed.get(assign.name.lexeme), copy(assign.value, renamed));
+        }
+        if (expr instanceof Expr.Binary)
+        {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return new Expr.Binary(copy(binary.left, renamed), binary.operator, copy(binary.right, renamed));
+        }
+        if (expr instanceof Expr.Logical)
+        {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return new Expr.Logical(copy(logical.left, renamed), logical.operator, copy(logical.right, renamed));
+        }
+        if (expr instanceof Expr.ThreeWay)
+        {
+            Expr.ThreeWay threeWay = (Expr.ThreeWay) expr;
+            return new Expr.ThreeWay(copy(threeWay.judge, renamed), threeWay.operator, copy(threeWay.left, renamed),
+                                     copy(threeWay.right, renamed));
+        }
+        if (expr instanceof Expr.Unary)
+        {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return new Expr.Unary(unary.operator, copy(unary.right, renamed));
+        }
+        if (expr instanceof Expr.Grouping) return new Expr.Grouping(copy(((Expr.Grouping) expr).expression, renamed));
+        if (expr instanceof Expr.Get)
+        {
+            Expr.Get get = (Expr.Get) expr;
+            return new Expr.Get(copy(get.object, renamed), get.name);
+        }
+        if (expr instanceof Expr.Set)
+        {
+            Expr.Set set = (Expr.Set) expr;
+            return new Expr.Set(copy(set.object, renamed), set.name, copy(set.value, renamed));
+        }
+        Expr.Call call = (Expr.Call) expr;
+        List<Expr> arguments = new ArrayList<>(call.arguments.size());
+        for (Expr argument : call.arguments)
+        {
+            arguments.add(copy(argument, renamed));
+        }
+        return new Expr.Call(copy(call.callee, renamed), call.paren, arguments);
+    }
+
+    // 统计每个名字在全局声明的次数、作为局部变量或参数声明过的名字，以及被赋值过的名字
+    private static class Names extends Rewriter
+    {
+        final Map<String, Integer> globals = new HashMap<>();
+        final Set<String> locals = new HashSet<>();
+        final Set<String> assigned = new HashSet<>();
+        // 包围当前位置的块和函数的层数，0 表示全局
+        private int depth = 0;
+
+        private void declare(Token name)
+        {
+            if (depth == 0) globals.merge(name.lexeme, 1, Integer::sum);
+            else locals.add(name.lexeme);
+        }
+
+        private void function(Stmt.Function function)
+        {
+            depth++;
+            for (Token param : function.params)
+            {
+                declare(param);
+            }
+            rewrite(function.body);
+            depth--;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt)
+        {
+            depth++;
+            rewrite(stmt.statements);
+            depth--;
+            return stmt;
+        }
+
+        // 方法名不是变量，不算声明
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt)
+        {
+            declare(stmt.name);
+            for (Stmt.Function method : stmt.methods)
+            {
+                function(method);
+            }
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt)
+        {
+            declare(stmt.name);
+            function(stmt);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt)
+        {
+            declare(stmt.name);
+            return super.visitVarStmt(stmt);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr)
+        {
+            assigned.add(expr.name.lexeme);
+            return super.visitAssignExpr(expr);
+        }
+    }
+}
\ No newline at end of file
@@ -1,17 +1,63 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion>
 {
+    // 声明时没有初始化式的变量在被赋值之前保存这个值，与 nil 区分开
+    static final Object UNINITIALIZED = new Object();
+
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-    private boolean isBroken = false;
-    private int isInBlock = 0;
+    // 没有被闭包捕获的局部变量放在共享的值栈上，每次调用占用从 frame 开始的一段槽位，返回后复用
+    private Object[] stack = new Object[256];
+    private int frame = 0;
+    private int top = 0;
+    // return 语句的值，语句以 Completion.RETURN 结束后由 LoxFunction 取走
+    Object returnValue = null;
+    // 以 BREAK 或 CONTINUE 结束时要跳出或继续的循环
+    private Stmt.While loopTarget = null;
+    // 尾调用求值的结果。真正的调用登记在下面三个字段上，由 LoxFunction 在释放调用者的帧之后执行
+    static final Object TAIL_CALL = new Object();
+    private LoxFunction tailFunction = null;
+    private LoxInstance tailReceiver = null;
+    private Object[] tailArguments = null;
+    // 为 null 时不把热点函数编译成 JVM 字节码
+    JitCompiler jit = null;
+
+    // 运算节点的自特化状态。节点第一次执行时根据运算数的实际类型改写成特化版本，
+    // 之后遇到别的类型就退化为 GENERIC，不再来回切换
+    private static final int UNSPECIALIZED = 0;
+    static final int GENERIC = 1;
+    static final int ADD_NUMBERS = 2;
+    static final int SUBTRACT_NUMBERS = 3;
+    static final int MULTIPLY_NUMBERS = 4;
+    static final int DIVIDE_NUMBERS = 5;
+    static final int GREATER_NUMBERS = 6;
+    static final int GREATER_EQUAL_NUMBERS = 7;
+    static final int LESS_NUMBERS = 8;
+    static final int LESS_EQUAL_NUMBERS = 9;
+    static final int EQUAL_NUMBERS = 10;
+    static final int NOT_EQUAL_NUMBERS = 11;
+    private static final int CONCAT_STRINGS = 12;
+    private static final int CONCAT_STRING_NUMBER = 13;
+    private static final int CONCAT_NUMBER_STRING = 14;
+    static final int NEGATE_NUMBER = 15;
+
+    // 特化节点按 double 求值时遇到了别的类型，带着已经算出的值交给上层节点处理
+    private static class UnexpectedType extends RuntimeException
+    {
+        final Object value;
+
+        UnexpectedType(Object value)
+        {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
 
     Interpreter()
     {
@@ -22,6 +68,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments)
+            {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter)
             {
                 return (double) System.currentTimeMillis() / 1000.0;
             }
@@ -31,8 +83,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         });
     }
 
-    void interpret(List<Stmt> statements)
+    void interpret(List<Stmt> statements, int frameSize)
     {
+        frame = 0;
+        top = frameSize;
+        ensureStack(top);
         try
         {
             for (Stmt statement : statements)
@@ -45,45 +100,95 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         }
     }
 
-    private void execute(Stmt stmt)
+    private Completion execute(Stmt stmt)
     {
-        stmt.accept(this);
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth)
+    // 声明只会落在当前帧、当前作用域的 Environment 或者全局表中
+    private void define(int depth, int slot, Object value)
     {
-        locals.put(expr, depth); // depth 是当前作用域和变量定义的作用域之间的距离
+        if (depth == Resolver.FRAME)
+        {
+            stack[frame + slot] = value;
+        } else if (depth == Resolver.GLOBAL)
+        {
+            globals.defineGlobal(slot, value);
+        } else
+        {
+            environment.assignAt(0, slot, value);
+        }
+    }
+
+    private void ensureStack(int size)
+    {
+        if (size > stack.length)
+        {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt)
+    public Completion visitBlockStmt(Stmt.Block stmt)
     {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+        // 只有块中声明了被捕获的变量时才需要新的 Environment
+        Environment blockEnvironment = stmt.envSize > 0 ? new Environment(environment, stmt.envSize) : environment;
+        return executeBlock(stmt.statements, blockEnvironment);
+    }
+
+    // 调用 Lox 函数分三步：enterFunction 在值栈上分配新帧，bindParameter 逐个写入参数，
+    // runFunction 执行函数体并恢复调用者的帧。参数不经过中间的列表
+    int enterFunction(Stmt.Function declaration)
+    {
+        int previousFrame = frame;
+        frame = top;
+        top = frame + declaration.frameSize;
+        ensureStack(top);
+        return previousFrame;
+    }
+
+    void bindParameter(Stmt.Function declaration, Environment environment, int index, Object value)
+    {
+        int slot = declaration.paramSlots[index];
+        if (slot < 0) stack[frame + index] = value;
+        else environment.assignAt(0, slot, value);
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment)
+    Completion runFunction(Stmt.Function declaration, Environment environment, int previousFrame)
+    {
+        try
+        {
+            return executeBlock(declaration.body, environment);
+        } finally
+        {
+            Arrays.fill(stack, frame, top, null);
+            top = frame;
+            frame = previousFrame;
+        }
+    }
+
+    // 遇到 return 或 break 时不再执行后面的语句，把结束方式交给外层
+    Completion executeBlock(List<Stmt> statements, Environment environment)
     {
         Environment previous = this.environment;
         try
         {
             this.environment = environment;
-            isInBlock++;
 
             for (Stmt statement : statements)
             {
-                if (isBroken) break;
-                execute(statement);
+                Completion completion = execute(statement);
+                if (completion != Completion.NORMAL) return completion;
             }
+            return Completion.NORMAL;
         } finally
         {
             this.environment = previous;
-            isInBlock--;
         }
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt)
+    public Completion visitClassStmt(Stmt.Class stmt)
     {
         Object superclass = null;
         if (stmt.superclass != null)
@@ -94,14 +199,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
                 throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
             }
         }
-        environment.define(stmt.name.lexeme, null);
-        if (stmt.superclass != null)
+        define(stmt.depth, stmt.slot, null);
+        Environment enclosing = environment;
+        if (!stmt.superMethods.isEmpty())
         {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = ((LoxClass) superclass).superMethods(environment, stmt.superMethods);
         }
 
-
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods)
         {
@@ -110,15 +214,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
-        if (superclass != null)
-        {
-            environment = environment.enclosing;
-        }
-        environment.assign(stmt.name, klass);
-        return null;
+        environment = enclosing;
+        define(stmt.depth, stmt.slot, klass);
+        return Completion.NORMAL;
     }
 
-    private String stringify(Object object)
+    static String stringify(Object object)
     {
         if (object == null) return "nil";
 
@@ -142,75 +243,86 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
 
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt)
+    public Completion visitIfStmt(Stmt.If stmt)
     {
         if (isTruthy(evaluate(stmt.condition)))
         {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null)
         {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
+    // 以这个循环为目标的 break 和 continue 在这里结束，return 和外层循环的 break、continue 继续向外传
     @Override
-    public Void visitWhileStmt(Stmt.While stmt)
+    public Completion visitWhileStmt(Stmt.While stmt)
     {
-        while (isTruthy(evaluate(stmt.condition)) && !isBroken)
+        while (isTruthy(evaluate(stmt.condition)))
         {
-            execute(stmt.body);
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL)
+            {
+                if (completion == Completion.RETURN || loopTarget != stmt) return completion;
+                if (completion == Completion.BREAK) break;
+            }
+            if (stmt.increment != null) evaluate(stmt.increment);
         }
-        isBroken = false;
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt)
+    public Completion visitBreakStmt(Stmt.Break stmt)
     {
-        if (isInBlock <= 0) throw new RuntimeError(stmt.operator, "Break statement outside of loop.");
-        isBroken = true;
-        return null;
+        loopTarget = stmt.loop;
+        return Completion.BREAK;
+    }
+
+    @Override
+    public Completion visitContinueStmt(Stmt.Continue stmt)
+    {
+        loopTarget = stmt.loop;
+        return Completion.CONTINUE;
     }
 
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt)
+    public Completion visitPrintStmt(Stmt.Print stmt)
     {
         Object value = evaluate(stmt.expression);
-        if (stmt.expression instanceof Expr.Variable) checkVarIsInitialized((Expr.Variable) stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt)
+    public Completion visitFunctionStmt(Stmt.Function stmt)
     {
         LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        define(stmt.depth, stmt.slot, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt)
+    public Completion visitVarStmt(Stmt.Var stmt)
     {
-        Object value = null;
+        Object value = UNINITIALIZED;
         if (stmt.initializer != null)
         {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.depth, stmt.slot, value);
+        return Completion.NORMAL;
     }
 
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt)
+    public Completion visitExpressionStmt(Stmt.Expression stmt)
     {
         Object value = evaluate(stmt.expression);
         if (!Lox.isInFile) System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
@@ -239,7 +351,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     @Override
     public Object visitVariableExpr(Expr.Variable expr)
     {
-        return lookUpVariable(expr.name, expr);
+        Object value = lookUpVariable(expr.name, expr.depth, expr.slot);
+        // Resolver 证明已经赋过值的地方连这一次比较也省掉
+        if (!expr.isInitialized && value == UNINITIALIZED)
+        {
+            if (expr.isOperand)
+            {
+                // 读取时就报错：同一个表达式里排在后面的操作数不再求值，它们的副作用也不会发生
+                throw new RuntimeError(expr.name, "Uninitialized variable '" + expr.name.lexeme + "'.");
+            }
+            return null;
+        }
+        return value;
     }
 
 
@@ -253,51 +376,157 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     public Object visitAssignExpr(Expr.Assign expr)
     {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null)
+        if (expr.depth == Resolver.FRAME)
+        {
+            stack[frame + expr.slot] = value;
+        } else if (expr.depth >= 0)
         {
-            environment.assignAt(distance, expr.name, value);
+            environment.assignAt(expr.depth, expr.slot, value);
         } else
         {
-            globals.assign(expr.name, value);
+            globals.assignGlobal(expr.slot, expr.name, value);
         }
         return value;
     }
 
+    // JVM 栈溢出在最内层的调用表达式转成调用点的运行时错误。try 直接写在这里，不为每层调用多占一个 Java 栈帧
     @Override
     public Object visitCallExpr(Expr.Call expr)
     {
-        Object callee = evaluate(expr.callee);
+        if (expr.site == null) expr.site = new LoxCallSite(expr.paren, expr.arguments.size());
+        try
+        {
+            if (expr.isTailCall) return tailCall(expr);
+            if (expr.callee instanceof Expr.Get || expr.callee instanceof Expr.Super) return invoke(expr);
+            Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments)
+            // 按参数个数选择调用约定，参数从左到右求值；类型和参数个数的检查在调用点第一次遇到这个被调用对象时完成
+            List<Expr> arguments = expr.arguments;
+            switch (arguments.size())
+            {
+                case 0:
+                    return expr.site.call0(callee, this);
+                case 1:
+                    return expr.site.call1(callee, this, evaluate(arguments.get(0)));
+                case 2:
+                    return expr.site.call2(callee, this, evaluate(arguments.get(0)), evaluate(arguments.get(1)));
+                case 3:
+                    return expr.site.call3(callee, this, evaluate(arguments.get(0)), evaluate(arguments.get(1)),
+                                           evaluate(arguments.get(2)));
+            }
+            Object[] values = new Object[arguments.size()];
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = evaluate(arguments.get(i));
+            }
+            return expr.site.call(callee, this, values);
+        } catch (StackOverflowError overflow)
         {
-            arguments.add(evaluate(argument));
+            throw expr.site.overflow();
         }
-        if (!(callee instanceof LoxCallable))
+    }
+
+    // obj.method(...) 和 super.method(...)：接收者直接传给方法，不创建绑定后的函数
+    private Object invoke(Expr.Call expr)
+    {
+        Object object;
+        Object callee;
+        if (expr.callee instanceof Expr.Get)
+        {
+            Expr.Get get = (Expr.Get) expr.callee;
+            object = evaluate(get.object);
+            callee = expr.site.method(object, get.name);
+        } else
         {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            Expr.Super method = (Expr.Super) expr.callee;
+            callee = superMethod(method);
+            object = evaluate(method.receiver);
         }
 
-        LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity())
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size())
+        {
+            case 0:
+                return expr.site.invoke0(callee, object, this);
+            case 1:
+                return expr.site.invoke1(callee, object, this, evaluate(arguments.get(0)));
+            case 2:
+                return expr.site.invoke2(callee, object, this, evaluate(arguments.get(0)), evaluate(arguments.get(1)));
+            case 3:
+                return expr.site.invoke3(callee, object, this, evaluate(arguments.get(0)), evaluate(arguments.get(1)),
+                                         evaluate(arguments.get(2)));
+        }
+        Object[] values = new Object[arguments.size()];
+        for (int i = 0; i < values.length; i++)
         {
-            throw new RuntimeError(expr.paren,
-                                   "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+            values[i] = evaluate(arguments.get(i));
         }
-        return function.call(this, arguments);
+        return expr.site.invoke(callee, object, this, values);
     }
 
-    @Override
-    public Object visitGetExpr(Expr.Get expr)
+    // 尾调用的求值顺序与普通调用相同，只是被调用的 Lox 函数由调用点登记下来，这里返回 TAIL_CALL
+    private Object tailCall(Expr.Call expr)
     {
-        Object object = evaluate(expr.object);
-        if (object instanceof LoxInstance)
+        Object object = null;
+        Object callee;
+        if (expr.callee instanceof Expr.Get)
         {
-            return ((LoxInstance) object).get(expr.name);
+            Expr.Get get = (Expr.Get) expr.callee;
+            object = evaluate(get.object);
+            callee = expr.site.method(object, get.name);
+        } else if (expr.callee instanceof Expr.Super)
+        {
+            Expr.Super method = (Expr.Super) expr.callee;
+            callee = superMethod(method);
+            object = evaluate(method.receiver);
+        } else
+        {
+            callee = evaluate(expr.callee);
         }
 
-        throw new RuntimeError(expr.name, "Only instances have properties.");
+        Object[] values = new Object[expr.arguments.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = evaluate(expr.arguments.get(i));
+        }
+        if (expr.callee instanceof Expr.Get || expr.callee instanceof Expr.Super)
+        {
+            return expr.site.tailInvoke(callee, object, this, values);
+        }
+        return expr.site.tailCall(callee, this, values);
+    }
+
+    Object deferCall(LoxFunction function, LoxInstance receiver, Object[] arguments)
+    {
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailArguments = arguments;
+        return TAIL_CALL;
+    }
+
+    // 依次执行登记的尾调用。执行时上一个函数的帧已经释放，Java 栈不随尾调用的次数增长
+    Object trampoline()
+    {
+        Object value;
+        do
+        {
+            LoxFunction function = tailFunction;
+            LoxInstance receiver = tailReceiver;
+            Object[] arguments = tailArguments;
+            tailFunction = null;
+            tailReceiver = null;
+            tailArguments = null;
+            value = function.tailInvoke(this, receiver, arguments);
+        } while (value == TAIL_CALL);
+        return value;
+    }
+
+    @Override
+    public Object visitGetExpr(Expr.Get expr)
+    {
+        Object object = evaluate(expr.object);
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return expr.cache.get(object, expr.name);
     }
 
     @Override
@@ -311,46 +540,81 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
-        return value;
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return expr.cache.set(object, expr.name, value);
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr)
     {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxFunction method = superMethod(expr);
+        return method.bind((LoxInstance) evaluate(expr.receiver));
+    }
+
+    // 父类的方法在创建类时已经查好，放在 Resolver 为这个 super.method 分配的槽位上
+    private LoxFunction superMethod(Expr.Super expr)
+    {
+        LoxFunction method = (LoxFunction) environment.getAt(expr.depth, expr.slot);
         if (method == null)
         {
             throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
         }
-
-        return method.bind(object);
+        return method;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr)
     {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt)
+    public Completion visitReturnStmt(Stmt.Return stmt)
     {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr)
     {
+        if (expr.specialization == NEGATE_NUMBER)
+        {
+            try
+            {
+                return negate(expr);
+            } catch (UnexpectedType unexpected)
+            {
+                return unexpected.value;
+            }
+        }
+
         Object right = evaluate(expr.right);
-        if (expr.right instanceof Expr.Variable) checkVarIsInitialized((Expr.Variable) expr.right);
+        if (expr.specialization == UNSPECIALIZED)
+        {
+            boolean number = expr.operator.type == TokenType.MINUS && right instanceof Double;
+            expr.specialization = number ? NEGATE_NUMBER : GENERIC;
+        }
+        return unary(expr, right);
+    }
 
+    private double negate(Expr.Unary expr)
+    {
+        try
+        {
+            return -evaluateNumber(expr.right);
+        } catch (UnexpectedType unexpected)
+        {
+            expr.specialization = GENERIC;
+            return expectNumber(unary(expr, unexpected.value));
+        }
+    }
+
+    Object unary(Expr.Unary expr, Object right)
+    {
         switch (expr.operator.type)
         {
             case BANG:
@@ -368,11 +632,198 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
     @Override
     public Object visitBinaryExpr(Expr.Binary expr)
     {
+        switch (expr.specialization)
+        {
+            case ADD_NUMBERS:
+            case SUBTRACT_NUMBERS:
+            case MULTIPLY_NUMBERS:
+            case DIVIDE_NUMBERS:
+                try
+                {
+                    return arithmetic(expr);
+                } catch (UnexpectedType unexpected)
+                {
+                    return unexpected.value;
+                }
+            case GREATER_NUMBERS:
+            case GREATER_EQUAL_NUMBERS:
+            case LESS_NUMBERS:
+            case LESS_EQUAL_NUMBERS:
+            case EQUAL_NUMBERS:
+            case NOT_EQUAL_NUMBERS:
+                return compare(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        if (expr.left instanceof Expr.Variable) checkVarIsInitialized((Expr.Variable) expr.left);
-        if (expr.right instanceof Expr.Variable) checkVarIsInitialized((Expr.Variable) expr.right);
+        switch (expr.specialization)
+        {
+            case CONCAT_STRINGS:
+                if (left instanceof String && right instanceof String) return (String) left + (String) right;
+                return generalize(expr, left, right);
+            case CONCAT_STRING_NUMBER:
+                if (left instanceof String && right instanceof Double) return (String) left + stringify(right);
+                return generalize(expr, left, right);
+            case CONCAT_NUMBER_STRING:
+                if (left instanceof Double && right instanceof String) return stringify(left) + (String) right;
+                return generalize(expr, left, right);
+            case UNSPECIALIZED:
+                expr.specialization = specialize(expr.operator, left, right);
+                break;
+        }
+        return binary(expr, left, right);
+    }
+
+    // 第一次执行时根据运算符和运算数的实际类型选出特化版本
+    private static int specialize(Token operator, Object left, Object right)
+    {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch (operator.type)
+        {
+            case PLUS:
+                if (numbers) return ADD_NUMBERS;
+                if (left instanceof String && right instanceof String) return CONCAT_STRINGS;
+                if (left instanceof String && right instanceof Double) return CONCAT_STRING_NUMBER;
+                if (left instanceof Double && right instanceof String) return CONCAT_NUMBER_STRING;
+                break;
+            case MINUS:
+                if (numbers) return SUBTRACT_NUMBERS;
+                break;
+            case STAR:
+                if (numbers) return MULTIPLY_NUMBERS;
+                break;
+            case SLASH:
+                if (numbers) return DIVIDE_NUMBERS;
+                break;
+            case GREATER:
+                if (numbers) return GREATER_NUMBERS;
+                break;
+            case GREATER_EQUAL:
+                if (numbers) return GREATER_EQUAL_NUMBERS;
+                break;
+            case LESS:
+                if (numbers) return LESS_NUMBERS;
+                break;
+            case LESS_EQUAL:
+                if (numbers) return LESS_EQUAL_NUMBERS;
+                break;
+            case EQUAL_EQUAL:
+                if (numbers) return EQUAL_NUMBERS;
+                break;
+            case BANG_EQUAL:
+                if (numbers) return NOT_EQUAL_NUMBERS;
+                break;
+        }
+        return GENERIC;
+    }
+
+    // 特化版本遇到了意料之外的类型，退化为通用版本，以后不再特化
+    private Object generalize(Expr.Binary expr, Object left, Object right)
+    {
+        expr.specialization = GENERIC;
+        return binary(expr, left, right);
+    }
+
+    private double arithmetic(Expr.Binary expr)
+    {
+        double left;
+        try
+        {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedType unexpected)
+        {
+            return expectNumber(generalize(expr, unexpected.value, evaluate(expr.right)));
+        }
+        double right;
+        try
+        {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedType unexpected)
+        {
+            return expectNumber(generalize(expr, left, unexpected.value));
+        }
+
+        switch (expr.specialization)
+        {
+            case ADD_NUMBERS:
+                return left + right;
+            case SUBTRACT_NUMBERS:
+                return left - right;
+            case MULTIPLY_NUMBERS:
+                return left * right;
+            default:
+                if (right == 0) throw new RuntimeError(expr.operator, "Divide by zero.");
+                return left / right;
+        }
+    }
+
+    private Object compare(Expr.Binary expr)
+    {
+        double left;
+        try
+        {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedType unexpected)
+        {
+            return generalize(expr, unexpected.value, evaluate(expr.right));
+        }
+        double right;
+        try
+        {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedType unexpected)
+        {
+            return generalize(expr, left, unexpected.value);
+        }
+
+        switch (expr.specialization)
+        {
+            case GREATER_NUMBERS:
+                return left > right;
+            case GREATER_EQUAL_NUMBERS:
+                return left >= right;
+            case LESS_NUMBERS:
+                return left < right;
+            case LESS_EQUAL_NUMBERS:
+                return left <= right;
+            case EQUAL_NUMBERS:
+                // 与 Double.equals 保持一致：NaN 等于自身，0.0 不等于 -0.0
+                return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+            default:
+                return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+        }
+    }
+
+    // 已经特化为数值运算的子树直接按 double 求值，中间结果不再装箱；
+    // 其它节点照常求值，结果不是数字时用 UnexpectedType 把它带回给上层节点
+    private double evaluateNumber(Expr expr)
+    {
+        if (expr instanceof Expr.Binary)
+        {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.specialization >= ADD_NUMBERS && binary.specialization <= DIVIDE_NUMBERS)
+            {
+                return arithmetic(binary);
+            }
+        } else if (expr instanceof Expr.Unary)
+        {
+            if (((Expr.Unary) expr).specialization == NEGATE_NUMBER) return negate((Expr.Unary) expr);
+        } else if (expr instanceof Expr.Grouping)
+        {
+            return evaluateNumber(((Expr.Grouping) expr).expression);
+        }
 
+        return expectNumber(evaluate(expr));
+    }
+
+    private static double expectNumber(Object value)
+    {
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedType(value);
+    }
+
+    Object binary(Expr.Binary expr, Object left, Object right)
+    {
         switch (expr.operator.type)
         {
             case GREATER:
@@ -416,9 +867,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
                 }
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
             case SLASH:
+                checkNumberOperands(expr.operator, left, right);
                 if ((double) right == 0) throw new RuntimeError(expr.operator, "Divide by zero.");
                 return (double) left / (double) right;
             case STAR:
+                checkNumberOperands(expr.operator, left, right);
                 return (double) left * (double) right;
             case COMMA:
                 return right;
@@ -436,32 +889,46 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        if (expr.judge instanceof Expr.Variable) checkVarIsInitialized((Expr.Variable) expr.judge);
-        if (expr.left instanceof Expr.Variable) checkVarIsInitialized((Expr.Variable) expr.left);
-        if (expr.right instanceof Expr.Variable) checkVarIsInitialized((Expr.Variable) expr.right);
-
-        if (isTruthy(judge)) return left;
-        else return right;
+        if (isTruthy(judge))
+        {
+            // 右分支登记的尾调用用不到它的值，但调用本身仍然要执行
+            if (right == TAIL_CALL) trampoline();
+            return left;
+        }
+        return right;
     }
 
-    private Object lookUpVariable(Token name, Expr expr)
+    // 被调用的仍是内联的那个函数时直接在当前帧中求值复制过来的函数体，参数放在 Resolver 分配的槽位里；
+    // 全局变量被重新绑定时按原来的调用执行
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr)
     {
-        Integer distance = locals.get(expr);
-        if (distance != null)
-        {
-            return environment.getAt(distance, name.lexeme);
-        } else
+        if (!isInlined(evaluate(expr.call.callee), expr.function)) return evaluate(expr.call);
+        List<Expr> arguments = expr.call.arguments;
+        for (int i = 0; i < arguments.size(); i++)
         {
-            return globals.get(name);
+            stack[frame + expr.slot + i] = evaluate(arguments.get(i));
         }
+        return evaluate(expr.body);
     }
 
+    static boolean isInlined(Object callee, Stmt.Function function)
+    {
+        return callee instanceof LoxFunction && ((LoxFunction) callee).declaration == function;
+    }
 
-    private void checkVarIsInitialized(Expr.Variable var)
+    // depth 是当前作用域和变量定义的作用域之间的距离，由 Resolver 直接写在节点上
+    private Object lookUpVariable(Token name, int depth, int slot)
     {
-        if (environment.get(var.name) == null)
+        if (depth == Resolver.FRAME)
+        {
+            return stack[frame + slot];
+        } else if (depth >= 0)
+        {
+            return environment.getAt(depth, slot);
+        } else
         {
-            throw new RuntimeError(var.name, "Uninitialized variable '" + var.name.lexeme + "'.");
+            return globals.getGlobal(slot, name);
         }
     }
 
@@ -479,14 +946,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void>
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object)
+    static boolean isTruthy(Object object)
     {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b)
+    static boolean isEqual(Object a, Object b)
     {
         if (a == null && b == null) return true;
         if (a == null) return false;
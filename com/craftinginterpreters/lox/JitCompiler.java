@@ -0,0 +1,1081 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.ClassFileWriter.*;
+
+// 把被调用次数超过阈值的函数编译成 JVM 字节码，通过 hidden class 加载，之后的调用直接执行生成的类。
+// 局部变量放在 JVM 局部变量表中；Interpreter 已经特化为数值运算的节点生成带类型检查的 double 运算，
+// 检查失败时退优化回 Interpreter。函数体中含有函数声明、类声明或者被捕获的局部变量时不编译
+final class JitCompiler
+{
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+    private static final String METHOD_HANDLES = "java/lang/invoke/MethodHandles";
+    private static final String PACKAGE = "com/craftinginterpreters/lox/";
+    private static final String INTERPRETER = PACKAGE + "Interpreter";
+    private static final String ENVIRONMENT = PACKAGE + "Environment";
+    private static final String TOKEN = PACKAGE + "Token";
+    private static final String INSTANCE = PACKAGE + "LoxInstance";
+    private static final String RUNTIME = PACKAGE + "JitRuntime";
+    private static final String COMPILED_FUNCTION = PACKAGE + "CompiledFunction";
+    private static final String CALL_SITE = PACKAGE + "LoxCallSite";
+    private static final String PROPERTY_CACHE = PACKAGE + "PropertyCache";
+    private static final String RUNTIME_ERROR = PACKAGE + "RuntimeError";
+    private static final String STACK_OVERFLOW = "java/lang/StackOverflowError";
+    private static final String BINARY = PACKAGE + "Expr$Binary";
+    private static final String UNARY = PACKAGE + "Expr$Unary";
+    private static final String FUNCTION = PACKAGE + "Stmt$Function";
+
+    // 局部变量表：0 是 this，1 到 3 是解释器、闭包和方法的接收者，之后依次是参数（或者参数数组）、
+    // 调用帧的槽位和临时变量
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int CLOSURE_LOCAL = 2;
+    private static final int RECEIVER_LOCAL = 3;
+    private static final int ARGUMENTS_LOCAL = 4;
+    private static final int MAX_ARGUMENTS = 3;
+    private static final int MAX_LOCALS = 256;
+
+    private final int threshold;
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    JitCompiler(int threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    // 每次调用 Interpreter 执行的函数时计数，达到阈值时编译。同一个声明的所有闭包共用计数和编译结果
+    CompiledFunction compiled(Stmt.Function declaration)
+    {
+        if (declaration.compiled != null) return declaration.compiled;
+        if (declaration.callCount < 0 || ++declaration.callCount < threshold) return null;
+
+        declaration.compiled = compile(declaration);
+        // 不支持的函数以后不再尝试
+        if (declaration.compiled == null) declaration.callCount = -1;
+        return declaration.compiled;
+    }
+
+    private CompiledFunction compile(Stmt.Function declaration)
+    {
+        if (declaration.envSize > 0) return null;
+        try
+        {
+            Generator generator = new Generator(declaration);
+            byte[] bytes = generator.generate();
+            MethodHandles.Lookup hidden = lookup.defineHiddenClassWithClassData(bytes, generator.sites.toArray(), true);
+            MethodType type = MethodType.methodType(void.class, Stmt.Function.class, Object[].class);
+            MethodHandle constructor = hidden.findConstructor(hidden.lookupClass(), type);
+            return (CompiledFunction) constructor.invoke(declaration, generator.constants.toArray());
+        } catch (Unsupported unsupported)
+        {
+            return null;
+        } catch (VirtualMachineError error)
+        {
+            throw error;
+        } catch (Throwable error)
+        {
+            // 生成的类通不过校验、无法链接或者构造失败时放弃编译，函数留在解释器中执行，不影响 Lox 程序
+            return null;
+        }
+    }
+
+    private static class Unsupported extends RuntimeException
+    {
+        Unsupported()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    // 为一个函数生成 class 文件。每个表达式执行完在操作数栈上留下一个 Object
+    private static final class Generator implements Expr.Visitor<Void>, Stmt.Visitor<Void>
+    {
+        private final Stmt.Function declaration;
+        private final ClassFileWriter writer;
+        private final ClassFileWriter.Code code;
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+        // 调用点的 invoker 作为 class data 传进来，保存在静态常量里，C2 可以穿过它内联
+        private final List<MethodHandle> sites = new ArrayList<>();
+        private final String className;
+        private final int arity;
+        private final int frameBase;
+        private int nextTemp;
+        private int maxLocals;
+        // 函数中每个循环的出口和 continue 的跳转位置，break 和 continue 直接跳过去
+        private final Map<Stmt.While, ClassFileWriter.Label> exits = new IdentityHashMap<>();
+        private final Map<Stmt.While, ClassFileWriter.Label> continues = new IdentityHashMap<>();
+
+        Generator(Stmt.Function declaration)
+        {
+            this.declaration = declaration;
+            className = PACKAGE + "Jit$" + declaration.name.lexeme;
+            writer = new ClassFileWriter(className, COMPILED_FUNCTION);
+            // 函数体放在与参数个数对应的 invoke 方法中
+            arity = declaration.params.size();
+            if (arity <= MAX_ARGUMENTS)
+            {
+                code = writer.method(0, "invoke" + arity, invokeDescriptor(objects(arity)));
+                frameBase = ARGUMENTS_LOCAL + arity;
+            } else
+            {
+                code = writer.method(0, "invoke", invokeDescriptor("[L" + OBJECT + ";"));
+                frameBase = ARGUMENTS_LOCAL + 1;
+            }
+            nextTemp = frameBase + declaration.frameSize;
+            maxLocals = nextTemp;
+        }
+
+        byte[] generate()
+        {
+            if (nextTemp >= MAX_LOCALS) throw new Unsupported();
+
+            String descriptor = "(L" + FUNCTION + ";[L" + OBJECT + ";)V";
+            ClassFileWriter.Code constructor = writer.method(0, "<init>", descriptor);
+            constructor.load(0);
+            constructor.load(1);
+            constructor.load(2);
+            constructor.invoke(INVOKESPECIAL, COMPILED_FUNCTION, "<init>", descriptor);
+            constructor.op(RETURN);
+            constructor.finish(3);
+
+            for (int i = 0; i < declaration.frameSize; i++)
+            {
+                if (i < arity && arity <= MAX_ARGUMENTS)
+                {
+                    code.load(ARGUMENTS_LOCAL + i);
+                } else if (i < arity)
+                {
+                    code.load(ARGUMENTS_LOCAL);
+                    code.loadInt(i);
+                    code.op(AALOAD);
+                } else if (i == arity && declaration.paramSlots.length > arity)
+                {
+                    // 方法的 this 紧跟在参数之后
+                    code.load(RECEIVER_LOCAL);
+                } else
+                {
+                    code.op(ACONST_NULL);
+                }
+                code.store(frameBase + i);
+            }
+            block(declaration.body);
+            code.op(ACONST_NULL);
+            code.op(ARETURN);
+
+            try
+            {
+                code.finish(maxLocals);
+            } catch (IllegalStateException tooLarge)
+            {
+                throw new Unsupported();
+            }
+            if (arity <= MAX_ARGUMENTS) arrayEntry();
+            if (!sites.isEmpty()) initializeSites();
+            return writer.toByteArray();
+        }
+
+        private static String invokeDescriptor(String arguments)
+        {
+            return "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";L" + INSTANCE + ";" + arguments + ")L" + OBJECT + ";";
+        }
+
+        // CompiledFunction 的数组版本：取出参数，转给函数体所在的方法
+        private void arrayEntry()
+        {
+            ClassFileWriter.Code entry = writer.method(0, "invoke", invokeDescriptor("[L" + OBJECT + ";"));
+            entry.load(0);
+            entry.load(INTERPRETER_LOCAL);
+            entry.load(CLOSURE_LOCAL);
+            entry.load(RECEIVER_LOCAL);
+            for (int i = 0; i < arity; i++)
+            {
+                entry.load(ARGUMENTS_LOCAL);
+                entry.loadInt(i);
+                entry.op(AALOAD);
+            }
+            entry.invoke(INVOKEVIRTUAL, className, "invoke" + arity, invokeDescriptor(objects(arity)));
+            entry.op(ARETURN);
+            entry.finish(ARGUMENTS_LOCAL + 1);
+        }
+
+        private void initializeSites()
+        {
+            String lookup = "L" + METHOD_HANDLES + "$Lookup;";
+            ClassFileWriter.Code initializer = writer.method(0x0008, "<clinit>", "()V");
+            initializer.invoke(INVOKESTATIC, METHOD_HANDLES, "lookup", "()" + lookup);
+            initializer.loadString("_");
+            initializer.loadClass(OBJECT);
+            initializer.invoke(INVOKESTATIC, METHOD_HANDLES, "classData",
+                               "(" + lookup + "Ljava/lang/String;Ljava/lang/Class;)L" + OBJECT + ";");
+            initializer.type(CHECKCAST, "[L" + OBJECT + ";");
+            initializer.store(0);
+            for (int i = 0; i < sites.size(); i++)
+            {
+                initializer.load(0);
+                initializer.loadInt(i);
+                initializer.op(AALOAD);
+                initializer.type(CHECKCAST, METHOD_HANDLE);
+                initializer.field(PUTSTATIC, className, "site" + i, "L" + METHOD_HANDLE + ";");
+            }
+            initializer.op(RETURN);
+            initializer.finish(1);
+        }
+
+        private static String objects(int count)
+        {
+            StringBuilder descriptor = new StringBuilder();
+            for (int i = 0; i < count; i++)
+            {
+                descriptor.append("L" + OBJECT + ";");
+            }
+            return descriptor.toString();
+        }
+
+        private void compile(Expr expr)
+        {
+            expr.accept(this);
+        }
+
+        private void compile(Stmt stmt)
+        {
+            stmt.accept(this);
+        }
+
+        private int allocateTemp()
+        {
+            int temp = nextTemp++;
+            if (nextTemp >= MAX_LOCALS) throw new Unsupported();
+            if (nextTemp > maxLocals) maxLocals = nextTemp;
+            return temp;
+        }
+
+        private void freeTemp()
+        {
+            nextTemp--;
+        }
+
+        // 生成代码需要的对象通过 constants 数组传进来
+        private void constant(Object value, String type)
+        {
+            Integer index = constantIndices.get(value);
+            if (index == null)
+            {
+                index = constants.size();
+                constants.add(value);
+                constantIndices.put(value, index);
+            }
+            code.load(0);
+            code.field(GETFIELD, COMPILED_FUNCTION, "constants", "[L" + OBJECT + ";");
+            code.loadInt(index);
+            code.op(AALOAD);
+            if (type != null) code.type(CHECKCAST, type);
+        }
+
+        private void isTruthy()
+        {
+            code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        }
+
+        private void boxBoolean()
+        {
+            code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)L" + BOOLEAN + ";");
+        }
+
+        private void boxDouble()
+        {
+            code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)L" + DOUBLE + ";");
+        }
+
+        private void unboxDouble()
+        {
+            code.type(CHECKCAST, DOUBLE);
+            code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+        }
+
+        // return 和 break 直接编译成跳转，块中不需要检查语句的结束方式
+        private void block(List<Stmt> statements)
+        {
+            for (Stmt statement : statements)
+            {
+                compile(statement);
+            }
+        }
+
+        // 条件表达式直接在操作数栈上留下 int
+        private void condition(Expr expr)
+        {
+            expr = unwrap(expr);
+            if (expr instanceof Expr.Binary && isComparison(((Expr.Binary) expr).specialization))
+            {
+                arithmetic((Expr.Binary) expr, true);
+                return;
+            }
+            compile(expr);
+            isTruthy();
+        }
+
+        private static Expr unwrap(Expr expr)
+        {
+            while (expr instanceof Expr.Grouping)
+            {
+                expr = ((Expr.Grouping) expr).expression;
+            }
+            return expr;
+        }
+
+        private static boolean isArithmetic(int specialization)
+        {
+            return specialization >= Interpreter.ADD_NUMBERS && specialization <= Interpreter.DIVIDE_NUMBERS;
+        }
+
+        private static boolean isComparison(int specialization)
+        {
+            return specialization >= Interpreter.GREATER_NUMBERS && specialization <= Interpreter.NOT_EQUAL_NUMBERS;
+        }
+
+        private static Double numberLiteral(Expr expr)
+        {
+            expr = unwrap(expr);
+            if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double)
+            {
+                return (Double) ((Expr.Literal) expr).value;
+            }
+            return null;
+        }
+
+        // 计算一个运算数并存入临时变量，数字字面量不需要
+        private int operand(Expr expr)
+        {
+            if (numberLiteral(expr) != null) return -1;
+            compile(expr);
+            int temp = allocateTemp();
+            code.store(temp);
+            return temp;
+        }
+
+        private void guard(int temp, ClassFileWriter.Label slow)
+        {
+            if (temp < 0) return;
+            code.load(temp);
+            code.type(INSTANCEOF, DOUBLE);
+            code.jump(IFEQ, slow);
+        }
+
+        private void loadNumber(Expr expr, int temp)
+        {
+            if (temp < 0)
+            {
+                code.loadDouble(numberLiteral(expr));
+            } else
+            {
+                code.load(temp);
+                unboxDouble();
+            }
+        }
+
+        private void loadObject(Expr expr, int temp)
+        {
+            if (temp < 0) constant(numberLiteral(expr), null);
+            else code.load(temp);
+        }
+
+        // 特化为数值运算的二元表达式：两边都是 Double 时直接做 double 运算，否则退优化。
+        // isCondition 时比较结果以 int 留在栈上
+        private void arithmetic(Expr.Binary expr, boolean isCondition)
+        {
+            int left = operand(expr.left);
+            int right = operand(expr.right);
+            ClassFileWriter.Label slow = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            guard(left, slow);
+            guard(right, slow);
+
+            loadNumber(expr.left, left);
+            loadNumber(expr.right, right);
+            int specialization = expr.specialization;
+            if (isArithmetic(specialization))
+            {
+                operate(expr);
+                boxDouble();
+            } else
+            {
+                compare(specialization);
+                if (!isCondition) boxBoolean();
+            }
+
+            if (left >= 0 || right >= 0)
+            {
+                code.jump(GOTO, end);
+                code.mark(slow);
+                code.load(0);
+                code.load(INTERPRETER_LOCAL);
+                constant(expr, BINARY);
+                loadObject(expr.left, left);
+                loadObject(expr.right, right);
+                code.invoke(INVOKESTATIC, RUNTIME, "deoptimize",
+                            "(L" + COMPILED_FUNCTION + ";L" + INTERPRETER + ";L" + BINARY + ";L" + OBJECT + ";L" +
+                                    OBJECT + ";)L" + OBJECT + ";");
+                if (isCondition) isTruthy();
+                code.mark(end);
+            }
+            if (right >= 0) freeTemp();
+            if (left >= 0) freeTemp();
+        }
+
+        private void operate(Expr.Binary expr)
+        {
+            switch (expr.specialization)
+            {
+                case Interpreter.ADD_NUMBERS:
+                    code.op(DADD);
+                    break;
+                case Interpreter.SUBTRACT_NUMBERS:
+                    code.op(DSUB);
+                    break;
+                case Interpreter.MULTIPLY_NUMBERS:
+                    code.op(DMUL);
+                    break;
+                default:
+                    ClassFileWriter.Label nonzero = new ClassFileWriter.Label();
+                    // dup2
+                    code.op(0x5c, 2);
+                    code.op(DCONST_0);
+                    code.op(DCMPL);
+                    code.jump(IFNE, nonzero);
+                    constant(expr.operator, TOKEN);
+                    code.invoke(INVOKESTATIC, RUNTIME, "divideByZero",
+                                "(L" + TOKEN + ";)L" + PACKAGE + "RuntimeError;");
+                    code.op(ATHROW);
+                    code.mark(nonzero);
+                    code.op(DDIV);
+            }
+        }
+
+        // 比较结果为假时跳走，NaN 参与的比较都为假
+        private void compare(int specialization)
+        {
+            ClassFileWriter.Label isFalse = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            switch (specialization)
+            {
+                case Interpreter.GREATER_NUMBERS:
+                    code.op(DCMPL);
+                    code.jump(IFLE, isFalse);
+                    break;
+                case Interpreter.GREATER_EQUAL_NUMBERS:
+                    code.op(DCMPL);
+                    code.jump(IFLT, isFalse);
+                    break;
+                case Interpreter.LESS_NUMBERS:
+                    code.op(DCMPG);
+                    code.jump(IFGE, isFalse);
+                    break;
+                case Interpreter.LESS_EQUAL_NUMBERS:
+                    code.op(DCMPG);
+                    code.jump(IFGT, isFalse);
+                    break;
+                default:
+                    // 与 Double.equals 一致，按位比较：先把右边换成 long，再和左边一起比较
+                    code.invoke(INVOKESTATIC, DOUBLE, "doubleToLongBits", "(D)J");
+                    // dup2_x2; pop2
+                    code.op(0x5e, 2);
+                    code.op(0x58, -2);
+                    code.invoke(INVOKESTATIC, DOUBLE, "doubleToLongBits", "(D)J");
+                    // lcmp
+                    code.op(0x94, -3);
+                    code.jump(specialization == Interpreter.EQUAL_NUMBERS ? IFNE : IFEQ, isFalse);
+            }
+            code.op(ICONST_1);
+            code.jump(GOTO, end);
+            code.mark(isFalse);
+            code.op(ICONST_0);
+            code.mark(end);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr)
+        {
+            if (isArithmetic(expr.specialization) || isComparison(expr.specialization))
+            {
+                arithmetic(expr, false);
+                return null;
+            }
+            if (expr.operator.type == TokenType.COMMA)
+            {
+                compile(expr.left);
+                code.op(POP);
+                compile(expr.right);
+                return null;
+            }
+
+            code.load(INTERPRETER_LOCAL);
+            constant(expr, BINARY);
+            compile(expr.left);
+            compile(expr.right);
+            code.invoke(INVOKEVIRTUAL, INTERPRETER, "binary",
+                        "(L" + BINARY + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr)
+        {
+            if (expr.operator.type == TokenType.BANG)
+            {
+                ClassFileWriter.Label isTrue = new ClassFileWriter.Label();
+                ClassFileWriter.Label end = new ClassFileWriter.Label();
+                compile(expr.right);
+                isTruthy();
+                code.jump(IFNE, isTrue);
+                code.field(GETSTATIC, BOOLEAN, "TRUE", "L" + BOOLEAN + ";");
+                code.jump(GOTO, end);
+                code.mark(isTrue);
+                code.field(GETSTATIC, BOOLEAN, "FALSE", "L" + BOOLEAN + ";");
+                code.mark(end);
+                return null;
+            }
+
+            if (expr.specialization == Interpreter.NEGATE_NUMBER)
+            {
+                ClassFileWriter.Label slow = new ClassFileWriter.Label();
+                ClassFileWriter.Label end = new ClassFileWriter.Label();
+                compile(expr.right);
+                int temp = allocateTemp();
+                code.store(temp);
+                guard(temp, slow);
+                code.load(temp);
+                unboxDouble();
+                code.op(DNEG);
+                boxDouble();
+                code.jump(GOTO, end);
+                code.mark(slow);
+                code.load(0);
+                code.load(INTERPRETER_LOCAL);
+                constant(expr, UNARY);
+                code.load(temp);
+                code.invoke(INVOKESTATIC, RUNTIME, "deoptimize",
+                            "(L" + COMPILED_FUNCTION + ";L" + INTERPRETER + ";L" + UNARY + ";L" + OBJECT + ";)L" +
+                                    OBJECT + ";");
+                code.mark(end);
+                freeTemp();
+                return null;
+            }
+
+            code.load(INTERPRETER_LOCAL);
+            constant(expr, UNARY);
+            compile(expr.right);
+            code.invoke(INVOKEVIRTUAL, INTERPRETER, "unary", "(L" + UNARY + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr)
+        {
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            compile(expr.left);
+            code.op(DUP);
+            isTruthy();
+            code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+            code.op(POP);
+            compile(expr.right);
+            code.mark(end);
+            return null;
+        }
+
+        // 三个运算数都要先求值
+        @Override
+        public Void visitThreeWayExpr(Expr.ThreeWay expr)
+        {
+            ClassFileWriter.Label isFalse = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            compile(expr.judge);
+            isTruthy();
+            compile(expr.left);
+            int left = allocateTemp();
+            code.store(left);
+            compile(expr.right);
+            int right = allocateTemp();
+            code.store(right);
+            code.jump(IFEQ, isFalse);
+            // 右分支可能登记了尾调用，条件为真时当场执行
+            code.load(right);
+            code.load(INTERPRETER_LOCAL);
+            code.invoke(INVOKESTATIC, RUNTIME, "discard", "(L" + OBJECT + ";L" + INTERPRETER + ";)V");
+            code.load(left);
+            code.jump(GOTO, end);
+            code.mark(isFalse);
+            code.load(right);
+            code.mark(end);
+            freeTemp();
+            freeTemp();
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr)
+        {
+            compile(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr)
+        {
+            if (expr.value == null)
+            {
+                code.op(ACONST_NULL);
+            } else if (expr.value instanceof Boolean)
+            {
+                code.field(GETSTATIC, BOOLEAN, (Boolean) expr.value ? "TRUE" : "FALSE", "L" + BOOLEAN + ";");
+            } else if (expr.value instanceof String)
+            {
+                code.loadString((String) expr.value);
+            } else
+            {
+                constant(expr.value, null);
+            }
+            return null;
+        }
+
+        private void read(Token name, int depth, int slot)
+        {
+            if (depth == Resolver.FRAME)
+            {
+                code.load(frameBase + slot);
+            } else if (depth >= 0)
+            {
+                code.load(CLOSURE_LOCAL);
+                code.loadInt(depth);
+                code.loadInt(slot);
+                code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)L" + OBJECT + ";");
+            } else
+            {
+                code.load(INTERPRETER_LOCAL);
+                code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+                code.loadInt(slot);
+                constant(name, TOKEN);
+                code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getGlobal", "(IL" + TOKEN + ";)L" + OBJECT + ";");
+            }
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr)
+        {
+            read(expr.name, expr.depth, expr.slot);
+            if (expr.isInitialized) return null;
+
+            ClassFileWriter.Label initialized = new ClassFileWriter.Label();
+            code.op(DUP);
+            code.field(GETSTATIC, INTERPRETER, "UNINITIALIZED", "L" + OBJECT + ";");
+            code.jump(IF_ACMPNE, initialized);
+            code.op(POP);
+            if (expr.isOperand)
+            {
+                constant(expr.name, TOKEN);
+                code.invoke(INVOKESTATIC, RUNTIME, "uninitialized", "(L" + TOKEN + ";)L" + PACKAGE + "RuntimeError;");
+                code.op(ATHROW);
+            } else
+            {
+                code.op(ACONST_NULL);
+            }
+            code.mark(initialized);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr)
+        {
+            read(expr.keyword, expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr)
+        {
+            compile(expr.value);
+            code.op(DUP);
+            if (expr.depth == Resolver.FRAME)
+            {
+                code.store(frameBase + expr.slot);
+                return null;
+            }
+
+            int value = allocateTemp();
+            code.store(value);
+            if (expr.depth >= 0)
+            {
+                code.load(CLOSURE_LOCAL);
+                code.loadInt(expr.depth);
+                code.loadInt(expr.slot);
+                code.load(value);
+                code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assignAt", "(IIL" + OBJECT + ";)V");
+            } else
+            {
+                code.load(INTERPRETER_LOCAL);
+                code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+                code.loadInt(expr.slot);
+                constant(expr.name, TOKEN);
+                code.load(value);
+                code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assignGlobal", "(IL" + TOKEN + ";L" + OBJECT + ";)V");
+            }
+            freeTemp();
+            return null;
+        }
+
+        // 与 Interpreter 相同：守卫通过时参数存入帧槽位对应的局部变量，然后执行函数体；否则执行原来的调用
+        @Override
+        public Void visitInlineExpr(Expr.Inline expr)
+        {
+            ClassFileWriter.Label fallback = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            compile(expr.call.callee);
+            constant(expr.function, FUNCTION);
+            code.invoke(INVOKESTATIC, INTERPRETER, "isInlined", "(L" + OBJECT + ";L" + FUNCTION + ";)Z");
+            code.jump(IFEQ, fallback);
+            List<Expr> arguments = expr.call.arguments;
+            for (int i = 0; i < arguments.size(); i++)
+            {
+                compile(arguments.get(i));
+                code.store(frameBase + expr.slot + i);
+            }
+            compile(expr.body);
+            code.jump(GOTO, end);
+            code.mark(fallback);
+            compile(expr.call);
+            code.mark(end);
+            return null;
+        }
+
+        // 和解释器一样在调用表达式上捕获 JVM 栈溢出，换成调用点的运行时错误
+        @Override
+        public Void visitCallExpr(Expr.Call expr)
+        {
+            if (expr.site == null) expr.site = new LoxCallSite(expr.paren, expr.arguments.size());
+            ClassFileWriter.Label start = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            ClassFileWriter.Label handler = new ClassFileWriter.Label();
+            ClassFileWriter.Label done = new ClassFileWriter.Label();
+            code.mark(start);
+            if (expr.isTailCall) tailCall(expr);
+            else if (expr.callee instanceof Expr.Get || expr.callee instanceof Expr.Super) invoke(expr);
+            else call(expr);
+            code.mark(end);
+            code.jump(GOTO, done);
+            code.handler(start, end, handler, STACK_OVERFLOW);
+            code.mark(handler);
+            code.op(POP);
+            constant(expr.site, CALL_SITE);
+            code.invoke(INVOKEVIRTUAL, CALL_SITE, "overflow", "()L" + RUNTIME_ERROR + ";");
+            code.op(ATHROW);
+            code.mark(done);
+            return null;
+        }
+
+        private void call(Expr.Call expr)
+        {
+            String field = "site" + sites.size();
+            sites.add(expr.site.invoker());
+            // private static final
+            writer.field(0x001a, field, "L" + METHOD_HANDLE + ";");
+
+            code.field(GETSTATIC, className, field, "L" + METHOD_HANDLE + ";");
+            compile(expr.callee);
+            code.load(INTERPRETER_LOCAL);
+            // 与 LoxCallSite 的类型一致：不超过三个参数时直接传，否则放进数组
+            int count = expr.arguments.size();
+            String arguments;
+            if (count <= MAX_ARGUMENTS)
+            {
+                for (Expr argument : expr.arguments)
+                {
+                    compile(argument);
+                }
+                arguments = objects(count);
+            } else
+            {
+                code.loadInt(count);
+                code.type(ANEWARRAY, OBJECT);
+                for (int i = 0; i < count; i++)
+                {
+                    code.op(DUP);
+                    code.loadInt(i);
+                    compile(expr.arguments.get(i));
+                    code.op(AASTORE);
+                }
+                arguments = "[L" + OBJECT + ";";
+            }
+            code.invoke(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact",
+                        "(L" + OBJECT + ";L" + INTERPRETER + ";" + arguments + ")L" + OBJECT + ";");
+        }
+
+        // obj.method(...) 和 super.method(...) 调用 LoxCallSite 的 invoke 系列，接收者直接传给方法
+        private void invoke(Expr.Call expr)
+        {
+            constant(expr.site, CALL_SITE);
+            int object = allocateTemp();
+            if (expr.callee instanceof Expr.Get)
+            {
+                Expr.Get get = (Expr.Get) expr.callee;
+                constant(expr.site, CALL_SITE);
+                compile(get.object);
+                code.op(DUP);
+                code.store(object);
+                constant(get.name, TOKEN);
+                code.invoke(INVOKEVIRTUAL, CALL_SITE, "method", "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+            } else
+            {
+                Expr.Super method = (Expr.Super) expr.callee;
+                superMethod(method);
+                compile(method.receiver);
+                code.store(object);
+            }
+            code.load(object);
+            code.load(INTERPRETER_LOCAL);
+            int count = expr.arguments.size();
+            String arguments;
+            if (count <= MAX_ARGUMENTS)
+            {
+                for (Expr argument : expr.arguments)
+                {
+                    compile(argument);
+                }
+                arguments = objects(count);
+            } else
+            {
+                code.loadInt(count);
+                code.type(ANEWARRAY, OBJECT);
+                for (int i = 0; i < count; i++)
+                {
+                    code.op(DUP);
+                    code.loadInt(i);
+                    compile(expr.arguments.get(i));
+                    code.op(AASTORE);
+                }
+                arguments = "[L" + OBJECT + ";";
+            }
+            freeTemp();
+            String name = count <= MAX_ARGUMENTS ? "invoke" + count : "invoke";
+            code.invoke(INVOKEVIRTUAL, CALL_SITE, name,
+                        "(L" + OBJECT + ";L" + OBJECT + ";L" + INTERPRETER + ";" + arguments + ")L" + OBJECT + ";");
+        }
+
+        // 和 Interpreter.tailCall 一样由调用点登记尾调用，生成的方法把 TAIL_CALL 直接返回给 LoxFunction
+        private void tailCall(Expr.Call expr)
+        {
+            constant(expr.site, CALL_SITE);
+            boolean isInvoke = expr.callee instanceof Expr.Get || expr.callee instanceof Expr.Super;
+            int object = allocateTemp();
+            if (expr.callee instanceof Expr.Get)
+            {
+                Expr.Get get = (Expr.Get) expr.callee;
+                constant(expr.site, CALL_SITE);
+                compile(get.object);
+                code.op(DUP);
+                code.store(object);
+                constant(get.name, TOKEN);
+                code.invoke(INVOKEVIRTUAL, CALL_SITE, "method", "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+            } else if (expr.callee instanceof Expr.Super)
+            {
+                Expr.Super method = (Expr.Super) expr.callee;
+                superMethod(method);
+                compile(method.receiver);
+                code.store(object);
+            } else
+            {
+                compile(expr.callee);
+            }
+            if (isInvoke) code.load(object);
+            code.load(INTERPRETER_LOCAL);
+            int count = expr.arguments.size();
+            code.loadInt(count);
+            code.type(ANEWARRAY, OBJECT);
+            for (int i = 0; i < count; i++)
+            {
+                code.op(DUP);
+                code.loadInt(i);
+                compile(expr.arguments.get(i));
+                code.op(AASTORE);
+            }
+            freeTemp();
+            String arguments = "L" + INTERPRETER + ";[L" + OBJECT + ";)L" + OBJECT + ";";
+            if (isInvoke)
+            {
+                code.invoke(INVOKEVIRTUAL, CALL_SITE, "tailInvoke", "(L" + OBJECT + ";L" + OBJECT + ";" + arguments);
+            } else
+            {
+                code.invoke(INVOKEVIRTUAL, CALL_SITE, "tailCall", "(L" + OBJECT + ";" + arguments);
+            }
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr)
+        {
+            if (expr.cache == null) expr.cache = new PropertyCache();
+            constant(expr.cache, PROPERTY_CACHE);
+            compile(expr.object);
+            constant(expr.name, TOKEN);
+            code.invoke(INVOKEVIRTUAL, PROPERTY_CACHE, "get", "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr)
+        {
+            if (expr.cache == null) expr.cache = new PropertyCache();
+            constant(expr.cache, PROPERTY_CACHE);
+            compile(expr.object);
+            constant(expr.name, TOKEN);
+            code.invoke(INVOKESTATIC, RUNTIME, "checkInstance", "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+            constant(expr.name, TOKEN);
+            compile(expr.value);
+            code.invoke(INVOKEVIRTUAL, PROPERTY_CACHE, "set",
+                        "(L" + OBJECT + ";L" + TOKEN + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr)
+        {
+            superMethod(expr);
+            compile(expr.receiver);
+            code.invoke(INVOKESTATIC, RUNTIME, "bind", "(L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        // 留下未绑定的父类方法
+        private void superMethod(Expr.Super expr)
+        {
+            code.load(CLOSURE_LOCAL);
+            code.loadInt(expr.depth);
+            code.loadInt(expr.slot);
+            constant(expr.method, TOKEN);
+            code.invoke(INVOKESTATIC, RUNTIME, "superMethod",
+                        "(L" + ENVIRONMENT + ";IIL" + TOKEN + ";)L" + OBJECT + ";");
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt)
+        {
+            if (stmt.envSize > 0) throw new Unsupported();
+            block(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt)
+        {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt)
+        {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt)
+        {
+            compile(stmt.expression);
+            if (!Lox.isInFile) code.invoke(INVOKESTATIC, RUNTIME, "print", "(L" + OBJECT + ";)V");
+            else code.op(POP);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt)
+        {
+            compile(stmt.expression);
+            code.invoke(INVOKESTATIC, RUNTIME, "print", "(L" + OBJECT + ";)V");
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt)
+        {
+            if (stmt.depth != Resolver.FRAME) throw new Unsupported();
+            if (stmt.initializer != null) compile(stmt.initializer);
+            else code.field(GETSTATIC, INTERPRETER, "UNINITIALIZED", "L" + OBJECT + ";");
+            code.store(frameBase + stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt)
+        {
+            ClassFileWriter.Label otherwise = new ClassFileWriter.Label();
+            condition(stmt.condition);
+            code.jump(IFEQ, otherwise);
+            compile(stmt.thenBranch);
+            if (stmt.elseBranch == null)
+            {
+                code.mark(otherwise);
+                return null;
+            }
+
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            code.jump(GOTO, end);
+            code.mark(otherwise);
+            compile(stmt.elseBranch);
+            code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt)
+        {
+            ClassFileWriter.Label loop = new ClassFileWriter.Label();
+            ClassFileWriter.Label next = new ClassFileWriter.Label();
+            ClassFileWriter.Label exit = new ClassFileWriter.Label();
+            exits.put(stmt, exit);
+            continues.put(stmt, next);
+            code.mark(loop);
+            condition(stmt.condition);
+            code.jump(IFEQ, exit);
+            compile(stmt.body);
+            code.mark(next);
+            if (stmt.increment != null)
+            {
+                compile(stmt.increment);
+                code.op(POP);
+            }
+            code.jump(GOTO, loop);
+            code.mark(exit);
+            return null;
+        }
+
+        // Resolver 保证目标循环就在这个函数中
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt)
+        {
+            code.jump(GOTO, exits.get(stmt.loop));
+            return null;
+        }
+
+        @Override
+        public Void visitContinueStmt(Stmt.Continue stmt)
+        {
+            code.jump(GOTO, continues.get(stmt.loop));
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt)
+        {
+            if (stmt.value != null) compile(stmt.value);
+            else code.op(ACONST_NULL);
+            code.op(ARETURN);
+            return null;
+        }
+    }
+}
\ No newline at end of file
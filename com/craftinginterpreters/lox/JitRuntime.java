@@ -0,0 +1,74 @@
+package com.craftinginterpreters.lox;
+
+// JitCompiler 生成的代码调用的辅助方法，语义与 Interpreter 中对应的 visit 方法一致
+final class JitRuntime
+{
+    private JitRuntime()
+    {
+    }
+
+    // 赋值前先检查对象，再计算右边的值
+    static Object checkInstance(Object object, Token name)
+    {
+        if (!(object instanceof LoxInstance))
+        {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return object;
+    }
+
+    static Object superMethod(Environment environment, int depth, int slot, Token method)
+    {
+        return ExprNode.Super.find(environment, depth, slot, method);
+    }
+
+    static Object bind(Object method, Object receiver)
+    {
+        return ((LoxFunction) method).bind((LoxInstance) receiver);
+    }
+
+    static void discard(Object value, Interpreter interpreter)
+    {
+        if (value == Interpreter.TAIL_CALL) interpreter.trampoline();
+    }
+
+    static RuntimeError uninitialized(Token name)
+    {
+        return new RuntimeError(name, "Uninitialized variable '" + name.lexeme + "'.");
+    }
+
+    static RuntimeError divideByZero(Token operator)
+    {
+        return new RuntimeError(operator, "Divide by zero.");
+    }
+
+    static void print(Object value)
+    {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    // 生成代码假设运算数都是数字，遇到别的类型时：这个节点以后不再特化，
+    // 函数退回解释执行，等再次变热后按新的类型信息重新编译；当前这次调用用通用版本算完
+    static Object deoptimize(CompiledFunction function, Interpreter interpreter, Expr.Binary expr, Object left,
+                             Object right)
+    {
+        invalidate(function);
+        expr.specialization = Interpreter.GENERIC;
+        return interpreter.binary(expr, left, right);
+    }
+
+    static Object deoptimize(CompiledFunction function, Interpreter interpreter, Expr.Unary expr, Object right)
+    {
+        invalidate(function);
+        expr.specialization = Interpreter.GENERIC;
+        return interpreter.unary(expr, right);
+    }
+
+    private static void invalidate(CompiledFunction function)
+    {
+        Stmt.Function declaration = function.declaration;
+        if (declaration.compiled != function) return;
+        declaration.compiled = null;
+        declaration.callCount = 0;
+    }
+}
\ No newline at end of file
@@ -6,21 +6,104 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
+import com.craftinginterpreters.vm.VM;
+
 public class Lox
 {
     private static final Interpreter interpreter = new Interpreter();
+    private static final ClosureCompiler compiler = new ClosureCompiler(interpreter);
+    private static VM vm = new VM();
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     static boolean isInFile = false;
 
+    // 执行方式：直接遍历语法树、编译成可执行节点树，或者编译成字节码交给虚拟机
+    private enum Engine
+    {
+        INTERPRETER, COMPILER, VIRTUAL_MACHINE
+    }
+
+    private static Engine engine = Engine.INTERPRETER;
+    private static final int JIT_THRESHOLD = 1000;
+    private static boolean showStatistics = false;
+    private static boolean hasMaxDepth = false;
+    private static boolean optimize = true;
+    private static boolean inline = true;
+
     public static void main(String[] args) throws IOException
     {
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("--"); first++)
+        {
+            String option = args[first];
+            if (option.equals("--compile"))
+            {
+                engine = Engine.COMPILER;
+            } else if (option.equals("--vm"))
+            {
+                engine = Engine.VIRTUAL_MACHINE;
+            } else if (option.equals("--jit") || option.startsWith("--jit="))
+            {
+                // 调用次数达到阈值的函数编译成 JVM 字节码，只对 Interpreter 执行的函数生效
+                int threshold = JIT_THRESHOLD;
+                if (option.startsWith("--jit="))
+                {
+                    try
+                    {
+                        threshold = Integer.parseInt(option.substring("--jit=".length()));
+                    } catch (NumberFormatException error)
+                    {
+                        threshold = 0;
+                    }
+                }
+                if (threshold <= 0) usage();
+                interpreter.jit = new JitCompiler(threshold);
+            } else if (option.startsWith("--max-depth="))
+            {
+                // 只限制虚拟机的调用帧个数。虚拟机的调用帧放在堆上，调用深度只受这个上限限制，与 Java 栈的大小无关
+                int depth;
+                try
+                {
+                    depth = Integer.parseInt(option.substring("--max-depth=".length()));
+                } catch (NumberFormatException error)
+                {
+                    depth = 0;
+                }
+                if (depth <= 0) usage();
+                vm = new VM(depth);
+                hasMaxDepth = true;
+            } else if (option.equals("--no-optimize"))
+            {
+                // 跳过 Optimizer，按源代码原样执行
+                optimize = false;
+            } else if (option.equals("--no-inline"))
+            {
+                // 不内联函数调用，调试时每次调用都真正进入函数
+                inline = false;
+            } else if (option.equals("--stats"))
+            {
+                // 结束时在标准错误输出调用点和属性访问的内联缓存统计
+                showStatistics = true;
+                LoxCallSite.collectStatistics = true;
+                PropertyCache.collectStatistics = true;
+            } else
+            {
+                usage();
+            }
+        }
+        // 只有虚拟机不用 Java 栈执行 Lox 调用。解释器、--compile 和 --jit 没有堆上的调用帧，
+        // 尾调用以外的调用深度由 Java 栈决定，栈溢出时在调用点报告 Stack overflow.
+        if (hasMaxDepth && engine != Engine.VIRTUAL_MACHINE) usage();
+        // 虚拟机不经过调用点和属性缓存，没有可以统计的内容
+        if (showStatistics && engine == Engine.VIRTUAL_MACHINE) usage();
+        args = Arrays.copyOfRange(args, first, args.length);
+
         if (args.length > 1)
         {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
+            usage();
         } else if (args.length == 1)
         {
             runFile(args[0]);
@@ -30,11 +113,18 @@ public class Lox
         }
     }
 
+    private static void usage()
+    {
+        System.out.println("Usage: jlox [--compile | --vm [--max-depth=frames]] [--jit[=threshold]] [--no-optimize] [--no-inline] [--stats] [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException
     {
         isInFile = true;
         byte[] bytes = Files.readAllBytes(Paths.get(path));
         run(new String(bytes, Charset.defaultCharset()));
+        if (showStatistics) printStatistics();
         // Indicate an error in the exit code.
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -54,6 +144,13 @@ public class Lox
             run(line);
             hadError = false;
         }
+        if (showStatistics) printStatistics();
+    }
+
+    private static void printStatistics()
+    {
+        System.err.println(LoxCallSite.statistics());
+        System.err.println(PropertyCache.statistics());
     }
 
     private static void run(String source)
@@ -69,7 +166,30 @@ public class Lox
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
         if (hadError) return;
-        interpreter.interpret(statements);
+        // 错误已经在原来的语法树上报告过了，改写之后重新解析，让节点上的变量地址等信息与新的语法树一致。
+        // 先优化再内联，内联时复制的是已经化简过的函数体
+        List<Stmt> rewritten = statements;
+        if (optimize) rewritten = new Optimizer().optimize(rewritten);
+        if (inline) rewritten = new Inliner().inline(rewritten);
+        if (rewritten != statements)
+        {
+            statements = rewritten;
+            resolver = new Resolver(interpreter);
+            resolver.resolve(statements);
+        }
+        switch (engine)
+        {
+            case COMPILER:
+                compiler.interpret(statements, resolver.scriptFrameSize());
+                break;
+            case VIRTUAL_MACHINE:
+                VM.InterpretResult result = vm.interpret(statements, isInFile);
+                if (result == VM.InterpretResult.COMPILE_ERROR) hadError = true;
+                if (result == VM.InterpretResult.RUNTIME_ERROR) hadRuntimeError = true;
+                break;
+            default:
+                interpreter.interpret(statements, resolver.scriptFrameSize());
+        }
     }
 
 
@@ -100,5 +220,4 @@ public class Lox
         System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
         hadRuntimeError = true;
     }
-}
-
+}
\ No newline at end of file
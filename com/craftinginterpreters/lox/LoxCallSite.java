@@ -0,0 +1,412 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// 每个调用表达式一个调用点，带一个最多四项的内联缓存。
+// 被调用对象第一次出现时检查类型和参数个数，然后记进缓存：Lox 函数按声明记录，类和原生函数按对象本身记录，
+// 之后命中缓存的调用不再检查。缓存满了以后调用点变成 megamorphic，每次都走检查后的通用调用。
+// 调用 obj.method(...) 时另外用 PropertyCache 按实例的布局缓存找到的方法，并且直接传入接收者而不绑定。
+// 同样的缓存内容还会链接成一串带守卫的 MethodHandle，供 JitCompiler 生成的代码 invokeExact。
+// 调用类时由调用点自己构造实例：记下在这里构造出的实例最多有几个字段，以后一次分配好字段数组。
+// 调用点的类型由参数个数决定：不超过三个参数时参数直接传递，对应 LoxCallable 的 call0 到 call3，
+// 否则传 Object[]
+final class LoxCallSite extends MutableCallSite
+{
+    private static final int MAX_ENTRIES = 4;
+    private static final int ARRAY = 4;
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle CHECK;
+    private static final MethodHandle IS_DECLARATION;
+    private static final MethodHandle IS_SAME;
+    // 按调用约定分别查好的 LoxFunction 和 LoxCallable 的调用方法，以及调用点构造实例的方法
+    private static final MethodHandle[] CALL_FUNCTION = new MethodHandle[ARRAY + 1];
+    private static final MethodHandle[] CALL_CALLABLE = new MethodHandle[ARRAY + 1];
+    private static final MethodHandle[] CONSTRUCT = new MethodHandle[ARRAY + 1];
+
+    // 打开 --stats 时记下创建过的调用点用于统计，否则不保留调用点的引用，调用点随语法树一起回收
+    static boolean collectStatistics = false;
+    private static final List<LoxCallSite> sites = new ArrayList<>();
+
+    static
+    {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType test = MethodType.methodType(boolean.class, Object.class, Object.class);
+        try
+        {
+            RELINK = lookup.findVirtual(LoxCallSite.class, "relink", type(ARRAY));
+            CHECK = lookup.findStatic(LoxCallSite.class, "check",
+                                      MethodType.methodType(void.class, Token.class, int.class, Object.class));
+            IS_DECLARATION = lookup.findStatic(LoxCallSite.class, "isDeclaration",
+                                               test.changeParameterType(0, Stmt.Function.class));
+            IS_SAME = lookup.findStatic(LoxCallSite.class, "isSame", test);
+            for (int variant = 0; variant <= ARRAY; variant++)
+            {
+                MethodType type = type(variant);
+                MethodType call = type.dropParameterTypes(0, 1);
+                CALL_FUNCTION[variant] = lookup.findVirtual(LoxFunction.class, name(variant), call).asType(type);
+                CALL_CALLABLE[variant] = lookup.findVirtual(LoxCallable.class, name(variant), call).asType(type);
+                String construct = variant == ARRAY ? "construct" : "construct" + variant;
+                CONSTRUCT[variant] = lookup.findVirtual(LoxCallSite.class, construct,
+                                                        call.insertParameterTypes(0, LoxClass.class));
+            }
+        } catch (ReflectiveOperationException error)
+        {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    // (Object callee, Interpreter, 参数...)Object
+    static MethodType type(int variant)
+    {
+        MethodType type = MethodType.methodType(Object.class, Object.class, Interpreter.class);
+        if (variant == ARRAY) return type.appendParameterTypes(Object[].class);
+        return type.appendParameterTypes(Collections.nCopies(variant, Object.class));
+    }
+
+    private static String name(int variant)
+    {
+        return variant == ARRAY ? "call" : "call" + variant;
+    }
+
+    private final Token paren;
+    private final int argumentCount;
+    private final int variant;
+    private final MethodHandle invoker;
+    private final MethodHandle relink;
+
+    // 被调用对象的缓存：LoxFunction 记录声明，其它记录对象本身
+    private final Object[] targets = new Object[MAX_ENTRIES];
+    private int targetCount = 0;
+    private boolean isMegamorphic = false;
+    // 在这里构造出的实例初始化之后最多有几个字段
+    private int fieldCount = 0;
+    // obj.method(...) 按实例的布局缓存找到的方法
+    private PropertyCache properties = null;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long megamorphicCalls = 0;
+
+    LoxCallSite(Token paren, int argumentCount)
+    {
+        super(type(Math.min(argumentCount, ARRAY)));
+        this.paren = paren;
+        this.argumentCount = argumentCount;
+        this.variant = Math.min(argumentCount, ARRAY);
+        MethodHandle relink = RELINK.bindTo(this);
+        if (variant != ARRAY) relink = relink.asCollector(Object[].class, variant);
+        this.relink = relink;
+        setTarget(relink);
+        invoker = dynamicInvoker();
+        if (collectStatistics) sites.add(this);
+    }
+
+    // JitCompiler 把它放进生成类的静态常量中直接 invokeExact
+    MethodHandle invoker()
+    {
+        return invoker;
+    }
+
+    // 三种执行方式都在调用表达式上把 JVM 栈溢出转成 Lox 的运行时错误，和字节码虚拟机一样报告调用所在的行。
+    // 最内层的调用点先捕获；在这里再次溢出时由外层的调用点处理
+    RuntimeError overflow()
+    {
+        return new RuntimeError(paren, "Stack overflow.");
+    }
+
+    // 命中缓存时 LoxFunction 经过类而不是接口调用，JVM 可以直接内联
+    Object call0(Object callee, Interpreter interpreter)
+    {
+        if (!isCached(callee)) link(callee);
+        if (callee instanceof LoxFunction) return ((LoxFunction) callee).call0(interpreter);
+        if (callee instanceof LoxClass) return construct0((LoxClass) callee, interpreter);
+        return ((LoxCallable) callee).call0(interpreter);
+    }
+
+    Object call1(Object callee, Interpreter interpreter, Object a)
+    {
+        if (!isCached(callee)) link(callee);
+        if (callee instanceof LoxFunction) return ((LoxFunction) callee).call1(interpreter, a);
+        if (callee instanceof LoxClass) return construct1((LoxClass) callee, interpreter, a);
+        return ((LoxCallable) callee).call1(interpreter, a);
+    }
+
+    Object call2(Object callee, Interpreter interpreter, Object a, Object b)
+    {
+        if (!isCached(callee)) link(callee);
+        if (callee instanceof LoxFunction) return ((LoxFunction) callee).call2(interpreter, a, b);
+        if (callee instanceof LoxClass) return construct2((LoxClass) callee, interpreter, a, b);
+        return ((LoxCallable) callee).call2(interpreter, a, b);
+    }
+
+    Object call3(Object callee, Interpreter interpreter, Object a, Object b, Object c)
+    {
+        if (!isCached(callee)) link(callee);
+        if (callee instanceof LoxFunction) return ((LoxFunction) callee).call3(interpreter, a, b, c);
+        if (callee instanceof LoxClass) return construct3((LoxClass) callee, interpreter, a, b, c);
+        return ((LoxCallable) callee).call3(interpreter, a, b, c);
+    }
+
+    Object call(Object callee, Interpreter interpreter, Object[] arguments)
+    {
+        if (!isCached(callee)) link(callee);
+        if (callee instanceof LoxFunction) return ((LoxFunction) callee).call(interpreter, arguments);
+        if (callee instanceof LoxClass) return construct((LoxClass) callee, interpreter, arguments);
+        return ((LoxCallable) callee).call(interpreter, arguments);
+    }
+
+    // 构造实例时直接调用类中缓存的初始化方法
+    private Object construct0(LoxClass klass, Interpreter interpreter)
+    {
+        LoxInstance instance = new LoxInstance(klass, fieldCount);
+        if (klass.initializer != null) klass.initializer.invoke0(interpreter, instance);
+        return constructed(instance);
+    }
+
+    private Object construct1(LoxClass klass, Interpreter interpreter, Object a)
+    {
+        LoxInstance instance = new LoxInstance(klass, fieldCount);
+        if (klass.initializer != null) klass.initializer.invoke1(interpreter, instance, a);
+        return constructed(instance);
+    }
+
+    private Object construct2(LoxClass klass, Interpreter interpreter, Object a, Object b)
+    {
+        LoxInstance instance = new LoxInstance(klass, fieldCount);
+        if (klass.initializer != null) klass.initializer.invoke2(interpreter, instance, a, b);
+        return constructed(instance);
+    }
+
+    private Object construct3(LoxClass klass, Interpreter interpreter, Object a, Object b, Object c)
+    {
+        LoxInstance instance = new LoxInstance(klass, fieldCount);
+        if (klass.initializer != null) klass.initializer.invoke3(interpreter, instance, a, b, c);
+        return constructed(instance);
+    }
+
+    private Object construct(LoxClass klass, Interpreter interpreter, Object[] arguments)
+    {
+        LoxInstance instance = new LoxInstance(klass, fieldCount);
+        if (klass.initializer != null) klass.initializer.invoke(interpreter, instance, arguments);
+        return constructed(instance);
+    }
+
+    // 初始化结束时实例的字段个数就是以后在这里构造的实例需要的大小
+    private Object constructed(LoxInstance instance)
+    {
+        int size = instance.shape.size();
+        if (size > fieldCount) fieldCount = size;
+        return instance;
+    }
+
+    private boolean isCached(Object callee)
+    {
+        Object key = callee instanceof LoxFunction ? ((LoxFunction) callee).declaration : callee;
+        for (int i = 0; i < targetCount; i++)
+        {
+            if (targets[i] == key)
+            {
+                hits++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 没有命中：检查之后记进缓存，缓存已满时转为 megamorphic
+    private void link(Object callee)
+    {
+        check(paren, argumentCount, callee);
+        if (isMegamorphic)
+        {
+            megamorphicCalls++;
+        } else if (targetCount < MAX_ENTRIES)
+        {
+            misses++;
+            targets[targetCount++] = callee instanceof LoxFunction ? ((LoxFunction) callee).declaration : callee;
+            setTarget(chain());
+        } else
+        {
+            megamorphicCalls++;
+            isMegamorphic = true;
+            targetCount = 0;
+            // 先检查再经过 LoxCallable 接口调用
+            MethodHandle check = MethodHandles.insertArguments(CHECK, 0, paren, argumentCount);
+            setTarget(MethodHandles.foldArguments(CALL_CALLABLE[variant], check));
+        }
+    }
+
+    // 按缓存内容构造守卫链，最早记录的目标在最前面
+    private MethodHandle chain()
+    {
+        MethodHandle chain = relink;
+        for (int i = targetCount - 1; i >= 0; i--)
+        {
+            Object key = targets[i];
+            MethodHandle test;
+            MethodHandle target;
+            if (key instanceof Stmt.Function)
+            {
+                test = IS_DECLARATION.bindTo(key);
+                target = CALL_FUNCTION[variant];
+            } else if (key instanceof LoxClass)
+            {
+                test = IS_SAME.bindTo(key);
+                target = MethodHandles.dropArguments(CONSTRUCT[variant].bindTo(this).bindTo(key), 0, Object.class);
+            } else
+            {
+                test = IS_SAME.bindTo(key);
+                target = MethodHandles.dropArguments(direct((LoxCallable) key).bindTo(key), 0, Object.class);
+            }
+            chain = MethodHandles.guardWithTest(test, target, chain);
+        }
+        return chain;
+    }
+
+    // MethodHandle 链上的守卫都不满足时到这里，没有命中的被调用对象在 call 系列中记进缓存
+    private Object relink(Object callee, Interpreter interpreter, Object[] arguments)
+    {
+        switch (variant)
+        {
+            case 0:
+                return call0(callee, interpreter);
+            case 1:
+                return call1(callee, interpreter, arguments[0]);
+            case 2:
+                return call2(callee, interpreter, arguments[0], arguments[1]);
+            case 3:
+                return call3(callee, interpreter, arguments[0], arguments[1], arguments[2]);
+            default:
+                return call(callee, interpreter, arguments);
+        }
+    }
+
+    // 原生函数尽量按实际的类查找调用方法，访问不到时经过 LoxCallable 接口
+    private MethodHandle direct(LoxCallable function)
+    {
+        try
+        {
+            MethodType call = type().dropParameterTypes(0, 1);
+            return MethodHandles.lookup().findVirtual(function.getClass(), name(variant), call).asType(type());
+        } catch (ReflectiveOperationException | SecurityException error)
+        {
+            return CALL_CALLABLE[variant];
+        }
+    }
+
+    // obj.method(...) 中取被调用的方法。找到的是类中的方法时返回未绑定的方法，
+    // 由 invoke 系列把 object 作为接收者传进去，不创建绑定后的函数
+    Object method(Object object, Token name)
+    {
+        if (properties == null) properties = new PropertyCache();
+        return properties.method(object, name);
+    }
+
+    // 调用 method 取到的被调用对象，参数已经求值。字段中的值按普通调用处理
+    Object invoke0(Object callee, Object object, Interpreter interpreter)
+    {
+        if (!isUnbound(callee)) return call0(callee, interpreter);
+        return ((LoxFunction) callee).invoke0(interpreter, (LoxInstance) object);
+    }
+
+    Object invoke1(Object callee, Object object, Interpreter interpreter, Object a)
+    {
+        if (!isUnbound(callee)) return call1(callee, interpreter, a);
+        return ((LoxFunction) callee).invoke1(interpreter, (LoxInstance) object, a);
+    }
+
+    Object invoke2(Object callee, Object object, Interpreter interpreter, Object a, Object b)
+    {
+        if (!isUnbound(callee)) return call2(callee, interpreter, a, b);
+        return ((LoxFunction) callee).invoke2(interpreter, (LoxInstance) object, a, b);
+    }
+
+    Object invoke3(Object callee, Object object, Interpreter interpreter, Object a, Object b, Object c)
+    {
+        if (!isUnbound(callee)) return call3(callee, interpreter, a, b, c);
+        return ((LoxFunction) callee).invoke3(interpreter, (LoxInstance) object, a, b, c);
+    }
+
+    Object invoke(Object callee, Object object, Interpreter interpreter, Object[] arguments)
+    {
+        if (!isUnbound(callee)) return call(callee, interpreter, arguments);
+        return ((LoxFunction) callee).invoke(interpreter, (LoxInstance) object, arguments);
+    }
+
+    // 尾调用：Lox 函数经过缓存检查之后交给解释器登记，返回 Interpreter.TAIL_CALL；类和原生函数直接调用
+    Object tailCall(Object callee, Interpreter interpreter, Object[] arguments)
+    {
+        if (!isCached(callee)) link(callee);
+        if (callee instanceof LoxFunction) return interpreter.deferCall((LoxFunction) callee, null, arguments);
+        return call(callee, interpreter, arguments);
+    }
+
+    Object tailInvoke(Object callee, Object object, Interpreter interpreter, Object[] arguments)
+    {
+        if (!isUnbound(callee)) return tailCall(callee, interpreter, arguments);
+        return interpreter.deferCall((LoxFunction) callee, (LoxInstance) object, arguments);
+    }
+
+    // 未绑定的方法同样经过缓存检查参数个数
+    private boolean isUnbound(Object callee)
+    {
+        if (!(callee instanceof LoxFunction) || !((LoxFunction) callee).isUnbound()) return false;
+        if (!isCached(callee)) link(callee);
+        return true;
+    }
+
+    private static void check(Token paren, int argumentCount, Object callee)
+    {
+        if (!(callee instanceof LoxCallable))
+        {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable) callee;
+        if (argumentCount != function.arity())
+        {
+            throw new RuntimeError(paren,
+                                   "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
+        }
+    }
+
+    private static boolean isDeclaration(Stmt.Function declaration, Object callee)
+    {
+        return callee instanceof LoxFunction && ((LoxFunction) callee).declaration == declaration;
+    }
+
+    private static boolean isSame(Object expected, Object callee)
+    {
+        return callee == expected;
+    }
+
+    // 汇总所有调用点的缓存情况。JIT 编译的代码中命中守卫链的调用不经过计数
+    static String statistics()
+    {
+        int monomorphic = 0;
+        int polymorphic = 0;
+        int megamorphic = 0;
+        long hits = 0;
+        long misses = 0;
+        long megamorphicCalls = 0;
+        for (LoxCallSite site : sites)
+        {
+            if (site.isMegamorphic) megamorphic++;
+            else if (site.targetCount > 1) polymorphic++;
+            else if (site.targetCount == 1) monomorphic++;
+            hits += site.hits;
+            misses += site.misses;
+            megamorphicCalls += site.megamorphicCalls;
+        }
+        return "call sites: " + sites.size() + " (monomorphic " + monomorphic + ", polymorphic " + polymorphic +
+                ", megamorphic " + megamorphic + ")\n" +
+                "calls: " + hits + " hits, " + misses + " misses, " + megamorphicCalls + " megamorphic";
+    }
+}
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 interface LoxCallable
@@ -7,4 +8,32 @@ interface LoxCallable
     int arity();
 
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    // 不分配参数列表的调用约定，调用点按参数个数选择。
+    // 默认实现最终转到上面的 List 版本，只实现了 List 版本的原生函数照样可以调用
+    default Object call0(Interpreter interpreter)
+    {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object a)
+    {
+        return call(interpreter, new Object[]{a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b)
+    {
+        return call(interpreter, new Object[]{a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c)
+    {
+        return call(interpreter, new Object[]{a, b, c});
+    }
+
+    // 超过三个参数时使用
+    default Object call(Interpreter interpreter, Object[] arguments)
+    {
+        return call(interpreter, Arrays.asList(arguments));
+    }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -7,44 +9,109 @@ class LoxClass implements LoxCallable
 {
     final String name;
     final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
+    // 方法名到方法表下标的映射。子类沿用父类的下标，只在后面追加自己新声明的名字，没有新名字时直接共用父类的映射。
+    // 创建类时把继承来的方法一起拷进方法表，查找时不再沿着父类逐层查找；创建之后都不再改变
+    private final Map<String, Integer> methodIndex;
+    private final LoxFunction[] methods;
+    final LoxFunction initializer;
+    // 这个类的实例刚创建时的空布局
+    final Shape shape = new Shape(this);
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods)
     {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+
+        Map<String, Integer> index = superclass == null ? new HashMap<>() : superclass.methodIndex;
+        boolean isShared = superclass != null;
+        for (String method : methods.keySet())
+        {
+            if (index.containsKey(method)) continue;
+            if (isShared)
+            {
+                index = new HashMap<>(index);
+                isShared = false;
+            }
+            index.put(method, index.size());
+        }
+        this.methodIndex = index;
+        this.methods = superclass == null ? new LoxFunction[index.size()] : Arrays.copyOf(superclass.methods, index.size());
+        for (Map.Entry<String, LoxFunction> method : methods.entrySet())
+        {
+            this.methods[index.get(method.getKey())] = method.getValue();
+        }
+        this.initializer = findMethod("init");
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments)
+    {
+        return call(interpreter, arguments.toArray());
+    }
+
+    // 与 LoxFunction 一样按参数个数分别实现，构造时不分配参数列表，也不绑定初始化方法
+    @Override
+    public Object call0(Interpreter interpreter)
     {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
-        if (initializer != null)
-        {
-            initializer.bind(instance).call(interpreter, arguments);
-        }
+        if (initializer != null) initializer.invoke0(interpreter, instance);
         return instance;
     }
 
-    LoxFunction findMethod(String name)
+    @Override
+    public Object call1(Interpreter interpreter, Object a)
     {
-        if (methods.containsKey(name))
-        {
-            return methods.get(name);
-        }
-        if (superclass != null)
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.invoke1(interpreter, instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b)
+    {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.invoke2(interpreter, instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c)
+    {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.invoke3(interpreter, instance, a, b, c);
+        return instance;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments)
+    {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.invoke(interpreter, instance, arguments);
+        return instance;
+    }
+
+    // 子类中用到的 super.method 在创建子类时一次查好，按 Resolver 分配的槽位放进新的 Environment。
+    // 找不到的方法留空，执行到那个 super 表达式时再报错
+    Environment superMethods(Environment enclosing, List<String> names)
+    {
+        Environment environment = new Environment(enclosing, names.size());
+        for (int i = 0; i < names.size(); i++)
         {
-            return superclass.findMethod(name);
+            environment.assignAt(0, i, findMethod(names.get(i)));
         }
-        return null;
+        return environment;
+    }
+
+    // 这个类和父类都没有声明过的名字返回 null
+    LoxFunction findMethod(String name)
+    {
+        Integer index = methodIndex.get(name);
+        return index == null ? null : methods[index];
     }
 
     @Override
     public int arity()
     {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
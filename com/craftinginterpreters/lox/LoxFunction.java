@@ -4,22 +4,45 @@ import java.util.List;
 
 class LoxFunction implements LoxCallable
 {
-    private final Stmt.Function declaration;
+    final Stmt.Function declaration;
     private final Environment closure;
     private final boolean isInitializer;
+    // 由 ClosureCompiler 创建的函数带着编译好的函数体，否则由 Interpreter 遍历语法树执行
+    private final StmtNode.Body body;
+    // 类中的方法本身不带接收者，调用时由调用点传入；取出方法作为值时 bind 出一个带接收者的函数
+    private final LoxInstance receiver;
+    private final boolean isMethod;
 
     LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer)
+    {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, StmtNode.Body body)
+    {
+        this(declaration, closure, isInitializer, body, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, StmtNode.Body body,
+                        LoxInstance receiver)
     {
         this.isInitializer = isInitializer;
         this.closure = closure;
         this.declaration = declaration;
+        this.body = body;
+        this.receiver = receiver;
+        this.isMethod = declaration.paramSlots.length > declaration.params.size();
     }
 
     LoxFunction bind(LoxInstance instance)
     {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, closure, isInitializer, body, instance);
+    }
+
+    // 还没有绑定接收者的方法，只会从类的方法表中取到
+    boolean isUnbound()
+    {
+        return isMethod && receiver == null;
     }
 
     @Override
@@ -31,24 +54,273 @@ class LoxFunction implements LoxCallable
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments)
     {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++)
+        return call(interpreter, arguments.toArray());
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter)
+    {
+        return invoke0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a)
+    {
+        return invoke1(interpreter, receiver, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b)
+    {
+        return invoke2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c)
+    {
+        return invoke3(interpreter, receiver, a, b, c);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments)
+    {
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    // 每种参数个数的实现都一样：热点函数执行编译好的代码，否则分配调用帧、写入参数、执行函数体。
+    // 方法的接收者作为最后一个参数写入，普通函数的 receiver 为 null
+    Object invoke0(Interpreter interpreter, LoxInstance receiver)
+    {
+        CompiledFunction compiled = compiled(interpreter);
+        if (compiled != null)
+        {
+            return finish(interpreter, compiled.invoke0(interpreter, closure, receiver), receiver);
+        }
+        Environment environment = environment();
+        if (body != null)
+        {
+            Frame frame = body.enter(environment);
+            if (isMethod) body.bind(frame, 0, receiver);
+            return run(interpreter, frame, receiver);
+        }
+        int previousFrame = interpreter.enterFunction(declaration);
+        if (isMethod) interpreter.bindParameter(declaration, environment, 0, receiver);
+        return run(interpreter, environment, previousFrame, receiver);
+    }
+
+    Object invoke1(Interpreter interpreter, LoxInstance receiver, Object a)
+    {
+        CompiledFunction compiled = compiled(interpreter);
+        if (compiled != null)
+        {
+            return finish(interpreter, compiled.invoke1(interpreter, closure, receiver, a), receiver);
+        }
+        Environment environment = environment();
+        if (body != null)
+        {
+            Frame frame = body.enter(environment);
+            body.bind(frame, 0, a);
+            if (isMethod) body.bind(frame, 1, receiver);
+            return run(interpreter, frame, receiver);
+        }
+        int previousFrame = interpreter.enterFunction(declaration);
+        interpreter.bindParameter(declaration, environment, 0, a);
+        if (isMethod) interpreter.bindParameter(declaration, environment, 1, receiver);
+        return run(interpreter, environment, previousFrame, receiver);
+    }
+
+    Object invoke2(Interpreter interpreter, LoxInstance receiver, Object a, Object b)
+    {
+        CompiledFunction compiled = compiled(interpreter);
+        if (compiled != null)
+        {
+            return finish(interpreter, compiled.invoke2(interpreter, closure, receiver, a, b), receiver);
+        }
+        Environment environment = environment();
+        if (body != null)
+        {
+            Frame frame = body.enter(environment);
+            body.bind(frame, 0, a);
+            body.bind(frame, 1, b);
+            if (isMethod) body.bind(frame, 2, receiver);
+            return run(interpreter, frame, receiver);
+        }
+        int previousFrame = interpreter.enterFunction(declaration);
+        interpreter.bindParameter(declaration, environment, 0, a);
+        interpreter.bindParameter(declaration, environment, 1, b);
+        if (isMethod) interpreter.bindParameter(declaration, environment, 2, receiver);
+        return run(interpreter, environment, previousFrame, receiver);
+    }
+
+    Object invoke3(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c)
+    {
+        CompiledFunction compiled = compiled(interpreter);
+        if (compiled != null)
+        {
+            return finish(interpreter, compiled.invoke3(interpreter, closure, receiver, a, b, c), receiver);
+        }
+        Environment environment = environment();
+        if (body != null)
+        {
+            Frame frame = body.enter(environment);
+            body.bind(frame, 0, a);
+            body.bind(frame, 1, b);
+            body.bind(frame, 2, c);
+            if (isMethod) body.bind(frame, 3, receiver);
+            return run(interpreter, frame, receiver);
+        }
+        int previousFrame = interpreter.enterFunction(declaration);
+        interpreter.bindParameter(declaration, environment, 0, a);
+        interpreter.bindParameter(declaration, environment, 1, b);
+        interpreter.bindParameter(declaration, environment, 2, c);
+        if (isMethod) interpreter.bindParameter(declaration, environment, 3, receiver);
+        return run(interpreter, environment, previousFrame, receiver);
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments)
+    {
+        switch (arguments.length)
+        {
+            case 0:
+                return invoke0(interpreter, receiver);
+            case 1:
+                return invoke1(interpreter, receiver, arguments[0]);
+            case 2:
+                return invoke2(interpreter, receiver, arguments[0], arguments[1]);
+            case 3:
+                return invoke3(interpreter, receiver, arguments[0], arguments[1], arguments[2]);
+        }
+
+        CompiledFunction compiled = compiled(interpreter);
+        if (compiled != null)
+        {
+            return finish(interpreter, compiled.invoke(interpreter, closure, receiver, arguments), receiver);
+        }
+        Environment environment = environment();
+        if (body != null)
+        {
+            Frame frame = body.enter(environment);
+            for (int i = 0; i < arguments.length; i++)
+            {
+                body.bind(frame, i, arguments[i]);
+            }
+            if (isMethod) body.bind(frame, arguments.length, receiver);
+            return run(interpreter, frame, receiver);
+        }
+        int previousFrame = interpreter.enterFunction(declaration);
+        for (int i = 0; i < arguments.length; i++)
+        {
+            interpreter.bindParameter(declaration, environment, i, arguments[i]);
+        }
+        if (isMethod) interpreter.bindParameter(declaration, environment, arguments.length, receiver);
+        return run(interpreter, environment, previousFrame, receiver);
+    }
+
+    // 解释执行的函数变热后改为执行编译好的 JVM 字节码
+    private CompiledFunction compiled(Interpreter interpreter)
+    {
+        if (body != null || interpreter.jit == null) return null;
+        return interpreter.jit.compiled(declaration);
+    }
+
+    // 函数体中没有被捕获的变量时，直接在闭包环境里执行，参数和局部变量都放在调用帧中
+    private Environment environment()
+    {
+        return declaration.envSize > 0 ? new Environment(closure, declaration.envSize) : closure;
+    }
+
+    // 由 Interpreter.trampoline 执行一次尾调用。函数体又以尾调用结束时返回 TAIL_CALL，交回 trampoline 继续，
+    // 不在这里嵌套执行。bind 出的函数调用时 receiver 为 null，使用绑定的接收者
+    Object tailInvoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments)
+    {
+        if (receiver == null) receiver = this.receiver;
+        if (body != null)
         {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+            Frame frame = body.enter(environment());
+            for (int i = 0; i < arguments.length; i++)
+            {
+                body.bind(frame, i, arguments[i]);
+            }
+            if (isMethod) body.bind(frame, arguments.length, receiver);
+            return result(execute(frame), receiver);
         }
+        CompiledFunction compiled = compiled(interpreter);
+        if (compiled != null) return result(invoke(compiled, interpreter, receiver, arguments), receiver);
+        Environment environment = environment();
+        int previousFrame = interpreter.enterFunction(declaration);
+        for (int i = 0; i < arguments.length; i++)
+        {
+            interpreter.bindParameter(declaration, environment, i, arguments[i]);
+        }
+        if (isMethod) interpreter.bindParameter(declaration, environment, arguments.length, receiver);
+        return result(execute(interpreter, environment, previousFrame), receiver);
+    }
+
+    private Object run(Interpreter interpreter, Frame frame, LoxInstance receiver)
+    {
+        return finish(interpreter, execute(frame), receiver);
+    }
+
+    private Object run(Interpreter interpreter, Environment environment, int previousFrame, LoxInstance receiver)
+    {
+        return finish(interpreter, execute(interpreter, environment, previousFrame), receiver);
+    }
+
+    // 解释执行和编译后的函数体都可能以尾调用结束，这时在当前函数的帧释放之后执行登记的调用
+    private Object finish(Interpreter interpreter, Object value, LoxInstance receiver)
+    {
+        if (value == Interpreter.TAIL_CALL) value = interpreter.trampoline();
+        return result(value, receiver);
+    }
+
+    // 按参数个数调用编译好的代码，不展开尾调用
+    private Object invoke(CompiledFunction compiled, Interpreter interpreter, LoxInstance receiver, Object[] arguments)
+    {
+        switch (arguments.length)
+        {
+            case 0:
+                return compiled.invoke0(interpreter, closure, receiver);
+            case 1:
+                return compiled.invoke1(interpreter, closure, receiver, arguments[0]);
+            case 2:
+                return compiled.invoke2(interpreter, closure, receiver, arguments[0], arguments[1]);
+            case 3:
+                return compiled.invoke3(interpreter, closure, receiver, arguments[0], arguments[1], arguments[2]);
+            default:
+                return compiled.invoke(interpreter, closure, receiver, arguments);
+        }
+    }
+
+    // 函数体以 return 结束时取出返回值，正常执行完时返回 nil，以尾调用结束时返回 Interpreter.TAIL_CALL
+    private Object execute(Frame frame)
+    {
         try
         {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue)
+            if (body.execute(frame) == Completion.RETURN) return frame.returnValue;
+            return null;
+        } finally
         {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+            body.exit(frame);
         }
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
+    // 函数体以尾调用结束时返回 Interpreter.TAIL_CALL
+    private Object execute(Interpreter interpreter, Environment environment, int previousFrame)
+    {
+        if (interpreter.runFunction(declaration, environment, previousFrame) == Completion.RETURN)
+        {
+            return interpreter.returnValue;
+        }
         return null;
     }
 
+    // 初始化方法总是返回接收者
+    private Object result(Object value, LoxInstance receiver)
+    {
+        if (isInitializer) return receiver;
+        return value;
+    }
+
     @Override
     public String toString()
     {
@@ -1,39 +1,66 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// 字段的名字记在共享的 Shape 中，实例本身只保存字段值
 class LoxInstance
 {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_VALUES = new Object[0];
+
+    Shape shape;
+    private Object[] values = NO_VALUES;
 
     LoxInstance(LoxClass klass)
     {
-        this.klass = klass;
+        this.shape = klass.shape;
+    }
+
+    // capacity 是预计的字段个数，字段数组一次分配到这么大
+    LoxInstance(LoxClass klass, int capacity)
+    {
+        this.shape = klass.shape;
+        if (capacity > 0) values = new Object[capacity];
     }
 
     Object get(Token name)
     {
-        if (fields.containsKey(name.lexeme))
-        {
-            return fields.get(name.lexeme);
-        }
+        int slot = shape.slotOf(name.lexeme);
+        if (slot >= 0) return values[slot];
         // 方法在字段之后查找，字段可能会覆盖方法
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxFunction method = shape.klass.findMethod(name.lexeme);
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
+    Object value(int slot)
+    {
+        return values[slot];
+    }
+
+    // 按 PropertyCache 记下的结果写入：shape 是写入之后的布局，slot 是字段的下标
+    void store(Shape shape, int slot, Object value)
+    {
+        if (slot >= values.length) values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+        this.shape = shape;
+        values[slot] = value;
+    }
+
     void set(Token name, Object value)
     {
-        fields.put(name.lexeme, value);
+        int slot = shape.slotOf(name.lexeme);
+        if (slot < 0)
+        {
+            shape = shape.add(name.lexeme);
+            slot = shape.size() - 1;
+            if (slot >= values.length) values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+        }
+        values[slot] = value;
     }
 
     @Override
     public String toString()
     {
-        return klass.name + " instance";
+        return shape.klass.name + " instance";
     }
 }
\ No newline at end of file
@@ -0,0 +1,260 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// 折叠常量运算、删掉不会执行的分支和语句、化简对数字安全的代数恒等式。
+// 改写只在结果和副作用都不变时进行，运行时会报错的常量运算保持原样留到运行时报告
+class Optimizer extends Rewriter
+{
+    List<Stmt> optimize(List<Stmt> statements)
+    {
+        return rewrite(statements);
+    }
+
+    // 跳转之后的语句不会执行
+    @Override
+    List<Stmt> rewrite(List<Stmt> statements)
+    {
+        List<Stmt> result = super.rewrite(statements);
+        for (int i = 0; i < result.size() - 1; i++)
+        {
+            Stmt statement = result.get(i);
+            if (statement instanceof Stmt.Return || statement instanceof Stmt.Break ||
+                    statement instanceof Stmt.Continue)
+            {
+                return result.subList(0, i + 1);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt)
+    {
+        Expr condition = rewrite(stmt.condition);
+        if (condition instanceof Expr.Literal)
+        {
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value)) return rewrite(stmt.thenBranch);
+            return stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = rewriteBranch(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+        {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    // 条件为常量假的循环连同递增式一起删掉
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt)
+    {
+        Expr condition = rewrite(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value))
+        {
+            return null;
+        }
+
+        Stmt body = rewriteBranch(stmt.body);
+        Expr increment = rewrite(stmt.increment);
+        if (condition == stmt.condition && body == stmt.body && increment == stmt.increment) return stmt;
+        return new Stmt.While(stmt.label, condition, body, increment);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr)
+    {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        // 逗号运算符丢掉的左边是常量时没有副作用
+        if (expr.operator.type == TokenType.COMMA && left instanceof Expr.Literal) return right;
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal)
+        {
+            Object value = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (value != null) return new Expr.Literal(value);
+        }
+
+        Expr simplified = simplify(expr.operator, left, right);
+        if (simplified != null) return simplified;
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // 按 Interpreter.binary 的规则计算两个常量，运行时会报错的组合返回 null，不做折叠
+    private static Object fold(TokenType operator, Object left, Object right)
+    {
+        if (operator == TokenType.PLUS)
+        {
+            if (left instanceof String && right instanceof String) return (String) left + (String) right;
+            if (left instanceof String && right instanceof Double)
+            {
+                return (String) left + Interpreter.stringify(right);
+            }
+            if (left instanceof Double && right instanceof String)
+            {
+                return Interpreter.stringify(left) + (String) right;
+            }
+        }
+        if (!(left instanceof Double && right instanceof Double)) return null;
+
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator)
+        {
+            case PLUS:
+                return a + b;
+            case MINUS:
+                return a - b;
+            case STAR:
+                return a * b;
+            case SLASH:
+                return b == 0 ? null : a / b;
+            case GREATER:
+                return a > b;
+            case GREATER_EQUAL:
+                return a >= b;
+            case LESS:
+                return a < b;
+            case LESS_EQUAL:
+                return a <= b;
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+        }
+        return null;
+    }
+
+    // 只有另一边一定是数字时才化简，否则运行时的类型错误会被吞掉。x + 0 在 x 为 -0 时结果不同，不能化简
+    private static Expr simplify(Token operator, Expr left, Expr right)
+    {
+        switch (operator.type)
+        {
+            case STAR:
+                if (isNumber(right, 1) && isNumeric(left)) return left;
+                if (isNumber(left, 1) && isNumeric(right)) return right;
+                break;
+            case SLASH:
+                if (isNumber(right, 1) && isNumeric(left)) return left;
+                // 除以 2 的整数次幂与乘以它的倒数结果完全相同，乘法比除法快
+                if (right instanceof Expr.Literal && isNumeric(left))
+                {
+                    Object divisor = ((Expr.Literal) right).value;
+                    if (divisor instanceof Double && isPowerOfTwo((double) divisor))
+                    {
+                        Token star = new Token(TokenType.STAR, "*", null, operator.line);
+                        return new Expr.Binary(left, star, new Expr.Literal(1 / (double) divisor));
+                    }
+                }
+                break;
+            case MINUS:
+                if (isNumber(right, 0) && isNumeric(left)) return left;
+                break;
+        }
+        return null;
+    }
+
+    // 除数和它的倒数都必须是正规数，这样乘法才不会损失精度
+    private static boolean isPowerOfTwo(double value)
+    {
+        double magnitude = Math.abs(value);
+        int exponent = Math.getExponent(magnitude);
+        return exponent >= Double.MIN_EXPONENT && exponent < Double.MAX_EXPONENT &&
+                magnitude == Math.scalb(1.0, exponent);
+    }
+
+    private static boolean isNumber(Expr expr, double value)
+    {
+        if (!(expr instanceof Expr.Literal)) return false;
+        Object literal = ((Expr.Literal) expr).value;
+        return literal instanceof Double && Double.doubleToLongBits((double) literal) == Double.doubleToLongBits(value);
+    }
+
+    // 不看运行时的值就能确定结果是数字(或者在运行时报错)的表达式
+    private static boolean isNumeric(Expr expr)
+    {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        if (expr instanceof Expr.Binary)
+        {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type)
+            {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+                case PLUS:
+                    return isNumeric(binary.left) && isNumeric(binary.right);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr)
+    {
+        Expr expression = rewrite(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    // 左边是常量时结果已经确定：要么就是左边的值，要么是右边求值的结果
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr)
+    {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left instanceof Expr.Literal)
+        {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr)
+    {
+        Expr right = rewrite(expr.right);
+        if (right instanceof Expr.Literal)
+        {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (value instanceof Double) return new Expr.Literal(-(double) value);
+        }
+        // 对数字取两次负号得到原来的值
+        if (expr.operator.type == TokenType.MINUS && right instanceof Expr.Unary)
+        {
+            Expr.Unary inner = (Expr.Unary) right;
+            if (inner.operator.type == TokenType.MINUS && isNumeric(inner.right)) return inner.right;
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    // 这个方言的 ?: 三个部分都要求值，条件是常量时只有不被选中的一边也是常量才能直接换成选中的一边
+    @Override
+    public Expr visitThreeWayExpr(Expr.ThreeWay expr)
+    {
+        Expr judge = rewrite(expr.judge);
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (judge instanceof Expr.Literal)
+        {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) judge).value);
+            if (truthy && right instanceof Expr.Literal) return left;
+            if (!truthy && left instanceof Expr.Literal) return right;
+        }
+        if (judge == expr.judge && left == expr.left && right == expr.right) return expr;
+        return new Expr.ThreeWay(judge, expr.operator, left, right);
+    }
+}
\ No newline at end of file
@@ -112,8 +112,10 @@ class Parser
     private Stmt statement()
     {
         if (match(BREAK)) return breakStatement();
-        if (match(FOR)) return forStatement();
-        if (match(WHILE)) return whileStatement();
+        if (match(CONTINUE)) return continueStatement();
+        if (check(IDENTIFIER) && checkNext(COLON)) return labeledStatement();
+        if (match(FOR)) return forStatement(null);
+        if (match(WHILE)) return whileStatement(null);
         if (match(IF)) return ifStatement();
         if (match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStatement();
@@ -121,13 +123,34 @@ class Parser
         return expressionStatement();
     }
 
+    // break 和 continue 后面可以跟外层循环的标签
     private Stmt breakStatement()
     {
+        Token keyword = previous();
+        Token label = match(IDENTIFIER) ? previous() : null;
         consume(SEMICOLON, "Expect ';' after 'break'.");
-        return new Stmt.Break(previous());
+        return new Stmt.Break(keyword, label);
+    }
+
+    private Stmt continueStatement()
+    {
+        Token keyword = previous();
+        Token label = match(IDENTIFIER) ? previous() : null;
+        consume(SEMICOLON, "Expect ';' after 'continue'.");
+        return new Stmt.Continue(keyword, label);
+    }
+
+    // 标签只能放在循环前面：label: while (...) 或 label: for (...)
+    private Stmt labeledStatement()
+    {
+        Token label = advance();
+        advance();
+        if (match(FOR)) return forStatement(label);
+        if (match(WHILE)) return whileStatement(label);
+        throw error(peek(), "Expect loop after label.");
     }
 
-    private Stmt forStatement()
+    private Stmt forStatement(Token label)
     {
         // desugaring
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
@@ -160,14 +183,9 @@ class Parser
 
         Stmt body = statement();
 
-        // 循环体后跟增量子句
-        if (increment != null)
-        {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-        }
-        // 循环体开始前先判断条件
+        // 增量子句留在循环节点上，continue 之后也要执行它
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(label, condition, body, increment);
 
         // 有初始化式就在循环体开始前运行一次
         if (initializer != null)
@@ -178,14 +196,14 @@ class Parser
         return body;
     }
 
-    private Stmt whileStatement()
+    private Stmt whileStatement(Token label)
     {
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(label, condition, body, null);
     }
 
     private Stmt ifStatement()
@@ -507,6 +525,12 @@ class Parser
         return peek().type == type;
     }
 
+    private boolean checkNext(TokenType type)
+    {
+        if (isAtEnd() || tokens.get(current + 1).type == EOF) return false;
+        return tokens.get(current + 1).type == type;
+    }
+
     private Token advance()
     {
         if (!isAtEnd()) current++;
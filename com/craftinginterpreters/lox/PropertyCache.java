@@ -0,0 +1,161 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 属性访问的内联缓存，放在 Expr.Get、Expr.Set 和 obj.method(...) 的调用点上，最多记录四种布局。
+// 读取时按布局记下字段的下标，或者没有这个字段时在类中找到的方法；写入时记下字段的下标和写入之后的布局。
+// 布局决定了实例的类和所有字段，所以命中时只需要比较布局再访问数组。
+// 布局太多时缓存变成 megamorphic，以后都走 LoxInstance 的通用查找
+final class PropertyCache
+{
+    private static final int MAX_ENTRIES = 4;
+
+    // 打开 --stats 时记下创建过的缓存用于统计，否则不保留缓存的引用
+    static boolean collectStatistics = false;
+    private static final List<PropertyCache> caches = new ArrayList<>();
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    private final int[] slots = new int[MAX_ENTRIES];
+    // 读取：找到的是方法时记录方法，字段时为 null
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    // 写入：写入之后实例的布局，写已有字段时与 shapes 中的相同
+    private final Shape[] targets = new Shape[MAX_ENTRIES];
+    private int count = 0;
+    private boolean isMegamorphic = false;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long megamorphicAccesses = 0;
+
+    PropertyCache()
+    {
+        if (collectStatistics) caches.add(this);
+    }
+
+    Object get(Object object, Token name)
+    {
+        LoxInstance instance = instance(object, name);
+        int entry = find(instance.shape);
+        if (entry < 0) entry = link(instance, name);
+        if (entry < 0) return instance.get(name);
+        LoxFunction method = methods[entry];
+        if (method != null) return method.bind(instance);
+        return instance.value(slots[entry]);
+    }
+
+    // 与 get 相同，但找到的是方法时不绑定，由调用点直接把实例作为接收者传进去
+    Object method(Object object, Token name)
+    {
+        LoxInstance instance = instance(object, name);
+        int entry = find(instance.shape);
+        if (entry < 0) entry = link(instance, name);
+        if (entry < 0) return instance.get(name);
+        LoxFunction method = methods[entry];
+        if (method != null) return method;
+        return instance.value(slots[entry]);
+    }
+
+    // 调用者已经检查过 object 是实例
+    Object set(Object object, Token name, Object value)
+    {
+        LoxInstance instance = (LoxInstance) object;
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++)
+        {
+            if (shapes[i] == shape)
+            {
+                hits++;
+                instance.store(targets[i], slots[i], value);
+                return value;
+            }
+        }
+
+        instance.set(name, value);
+        if (isMegamorphic)
+        {
+            megamorphicAccesses++;
+        } else if (count < MAX_ENTRIES)
+        {
+            misses++;
+            shapes[count] = shape;
+            slots[count] = instance.shape.slotOf(name.lexeme);
+            targets[count++] = instance.shape;
+        } else
+        {
+            becomeMegamorphic();
+        }
+        return value;
+    }
+
+    private static LoxInstance instance(Object object, Token name)
+    {
+        if (object instanceof LoxInstance) return (LoxInstance) object;
+
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    private int find(Shape shape)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (shapes[i] == shape)
+            {
+                hits++;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 没有命中时记录这个布局，返回新的缓存项；megamorphic 或者属性不存在时返回 -1，交给通用查找处理
+    private int link(LoxInstance instance, Token name)
+    {
+        Shape shape = instance.shape;
+        int slot = shape.slotOf(name.lexeme);
+        LoxFunction method = slot < 0 ? shape.klass.findMethod(name.lexeme) : null;
+        if (slot < 0 && method == null) return -1;
+        if (isMegamorphic)
+        {
+            megamorphicAccesses++;
+            return -1;
+        }
+        if (count == MAX_ENTRIES)
+        {
+            becomeMegamorphic();
+            return -1;
+        }
+
+        misses++;
+        shapes[count] = shape;
+        slots[count] = slot;
+        methods[count] = method;
+        return count++;
+    }
+
+    private void becomeMegamorphic()
+    {
+        megamorphicAccesses++;
+        isMegamorphic = true;
+        count = 0;
+    }
+
+    // 汇总所有属性缓存的命中情况
+    static String statistics()
+    {
+        int megamorphic = 0;
+        long hits = 0;
+        long misses = 0;
+        long megamorphicAccesses = 0;
+        for (PropertyCache cache : caches)
+        {
+            if (cache.isMegamorphic) megamorphic++;
+            hits += cache.hits;
+            misses += cache.misses;
+            megamorphicAccesses += cache.megamorphicAccesses;
+        }
+        return "property caches: " + caches.size() + " (megamorphic " + megamorphic + ")\n" +
+                "property accesses: " + hits + " hits, " + misses + " misses, " + megamorphicAccesses +
+                " megamorphic";
+    }
+}
\ No newline at end of file
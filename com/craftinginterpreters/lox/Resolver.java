@@ -1,15 +1,30 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
 {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE; // 拓展解析器来跟踪函数
+    // 当前函数的嵌套层数(顶层代码为 0)，以及它的帧中下一个空闲槽位和需要的槽位总数
+    private int functionDepth = 0;
+    private int nextSlot = 0;
+    private int frameSize = 0;
+    // 定义性赋值分析：当前位置上一定已经赋过值的局部变量，null 表示当前位置不可达
+    private Set<Local> assigned = new HashSet<>();
+    // 当前函数中包围当前位置的循环，由内到外排在末尾到开头。break 和 continue 不能跨出函数
+    private List<Stmt.While> loops = new ArrayList<>();
+
+    // 节点上 depth 字段的两个特殊取值，非负数表示沿环境链向上的距离
+    static final int GLOBAL = -1;
+    static final int FRAME = -2;
 
     Resolver(Interpreter interpreter)
     {
@@ -27,6 +42,52 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     }
 
     private ClassType currentClass = ClassType.NONE;
+    // 当前子类的 super 作用域。其中每个 super.method 占一个槽位，创建类时填入父类中找到的方法
+    private Scope superScope = null;
+    private Stmt.Class superClassStmt = null;
+
+    // 一个词法作用域。只有其中声明了被闭包捕获的变量时，运行时才会为它创建 Environment
+    private static class Scope
+    {
+        final Scope enclosing;
+        final int frameBase;
+        final Map<String, Local> locals = new LinkedHashMap<>();
+        int envSize = 0;
+
+        Scope(Scope enclosing, int frameBase)
+        {
+            this.enclosing = enclosing;
+            this.frameBase = frameBase;
+        }
+    }
+
+    // 局部变量默认放在函数帧的槽位里，被内层函数捕获时才放进所在作用域的 Environment
+    private static class Local
+    {
+        final int function;
+        final int frameSlot;
+        final Stmt declaration;
+        final int param;
+        boolean defined = false;
+        boolean captured = false;
+        int envSlot;
+        // 作用域结束时才知道变量是否被捕获，所以先记下所有引用，到那时再回填地址
+        final List<Expr> uses = new ArrayList<>();
+        final List<Scope> useScopes = new ArrayList<>();
+
+        Local(int function, int frameSlot, Stmt declaration, int param)
+        {
+            this.function = function;
+            this.frameSlot = frameSlot;
+            this.declaration = declaration;
+            this.param = param;
+        }
+    }
+
+    int scriptFrameSize()
+    {
+        return frameSize;
+    }
 
     void resolve(List<Stmt> statements)
     {
@@ -39,20 +100,41 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     @Override
     public Void visitBlockStmt(Stmt.Block stmt)
     {
+        // 不声明变量、函数或类的块(比如 for 脱糖出来的循环体)没有自己的作用域，直接并入外层，
+        // 距离计算自然就跳过了它，运行时 envSize 为 0 也就不会分配 Environment
+        if (!declaresNames(stmt.statements))
+        {
+            resolve(stmt.statements);
+            return null;
+        }
+
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.envSize = endScope().envSize;
         return null;
     }
 
+    private static boolean declaresNames(List<Stmt> statements)
+    {
+        for (Stmt statement : statements)
+        {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function ||
+                    statement instanceof Stmt.Class)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Void visitClassStmt(Stmt.Class stmt)
     {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
-        define(stmt.name);
+        declare(stmt.name, stmt, -1);
+        define(stmt.name, true);
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme))
         {
             Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
@@ -63,14 +145,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass);
         }
+        Scope enclosingSuperScope = superScope;
+        Stmt.Class enclosingSuperClassStmt = superClassStmt;
+        stmt.superMethods = new ArrayList<>();
         if (stmt.superclass != null)
         {
             beginScope();
-            scopes.peek().put("super", true);
+            superScope = scopes.peek();
+            superClassStmt = stmt;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods)
         {
             FunctionType declaration = FunctionType.METHOD;
@@ -80,8 +164,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
             }
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass != null) endScope();
+        superScope = enclosingSuperScope;
+        superClassStmt = enclosingSuperClassStmt;
         currentClass = enclosingClass;
         return null;
     }
@@ -89,8 +174,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt)
     {
-        declare(stmt.name);
-        define(stmt.name);
+        declare(stmt.name, stmt, -1);
+        define(stmt.name, true);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -100,14 +185,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     public Void visitIfStmt(Stmt.If stmt)
     {
         resolve(stmt.condition);
+        Set<Local> beforeBranches = copyAssigned();
         resolve(stmt.thenBranch);
+        Set<Local> afterThen = assigned;
+        assigned = beforeBranches;
         if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        assigned = merge(afterThen, assigned);
         return null;
     }
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt)
     {
+        markOperand(stmt.expression);
         resolve(stmt.expression);
         return null;
     }
@@ -125,36 +215,104 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
             if (currentFunction == FunctionType.INITIALIZER)
             {
                 Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+            } else
+            {
+                markTailCalls(stmt.value);
             }
             resolve(stmt.value);
         }
 
+        assigned = null;
         return null;
     }
 
+    // 值直接作为 return 的值的调用是尾调用：return f(x)，以及穿过分组和 and、or 右边的调用。
+    // ?: 的三个部分都会求值，只有最后求值的右分支可能是尾调用，条件为真时解释器当场执行它
+    private static void markTailCalls(Expr expr)
+    {
+        if (expr instanceof Expr.Call)
+        {
+            ((Expr.Call) expr).isTailCall = true;
+        } else if (expr instanceof Expr.Grouping)
+        {
+            markTailCalls(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Logical)
+        {
+            markTailCalls(((Expr.Logical) expr).right);
+        } else if (expr instanceof Expr.ThreeWay)
+        {
+            markTailCalls(((Expr.ThreeWay) expr).right);
+        }
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt)
     {
+        if (stmt.label != null)
+        {
+            for (Stmt.While loop : loops)
+            {
+                if (loop.label != null && loop.label.lexeme.equals(stmt.label.lexeme))
+                {
+                    Lox.error(stmt.label, "Already a loop with this label.");
+                }
+            }
+        }
         resolve(stmt.condition);
+        // 循环体可能一次也不执行，也可能被 break 提前结束，所以循环之后只算条件中的赋值
+        Set<Local> afterCondition = copyAssigned();
+        loops.add(stmt);
         resolve(stmt.body);
+        loops.remove(loops.size() - 1);
+        // continue 会跳过循环体的剩余部分直接执行增量子句，同样只算条件中的赋值
+        if (stmt.increment != null)
+        {
+            assigned = afterCondition == null ? null : new HashSet<>(afterCondition);
+            resolve(stmt.increment);
+        }
+        assigned = afterCondition;
         return null;
     }
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt)
     {
+        stmt.loop = loopOf(stmt.keyword, stmt.label);
+        // break 之后直到循环结束的语句都会被跳过
+        assigned = null;
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt)
+    {
+        stmt.loop = loopOf(stmt.keyword, stmt.label);
+        assigned = null;
+        return null;
+    }
+
+    // 没有标签时是最近的外层循环，否则是带这个标签的外层循环
+    private Stmt.While loopOf(Token keyword, Token label)
+    {
+        for (int i = loops.size() - 1; i >= 0; i--)
+        {
+            Stmt.While loop = loops.get(i);
+            if (label == null || (loop.label != null && loop.label.lexeme.equals(label.lexeme))) return loop;
+        }
+        if (label != null) Lox.error(label, "No enclosing loop labeled '" + label.lexeme + "'.");
+        else Lox.error(keyword, "Can't use '" + keyword.lexeme + "' outside of a loop.");
         return null;
     }
 
 
     public Void visitVarStmt(Stmt.Var stmt)
     {
-        declare(stmt.name);
+        declare(stmt.name, stmt, -1);
         if (stmt.initializer != null)
         {
             resolve(stmt.initializer);
         }
-        define(stmt.name);
+        define(stmt.name, stmt.initializer != null);
         return null;
     }
 
@@ -168,6 +326,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     @Override
     public Void visitBinaryExpr(Expr.Binary expr)
     {
+        markOperand(expr.left);
+        markOperand(expr.right);
         resolve(expr.left);
         resolve(expr.right);
         return null;
@@ -197,8 +357,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     @Override
     public Void visitSetExpr(Expr.Set expr)
     {
-        resolve(expr.value);
+        // 与解释器的求值顺序保持一致，定义性赋值分析依赖这一点
         resolve(expr.object);
+        resolve(expr.value);
         return null;
     }
 
@@ -212,7 +373,20 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
         {
             Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        if (currentClass == ClassType.SUBCLASS)
+        {
+            // super.method 在创建类时就确定了，解析到 super 作用域中对应的槽位
+            String name = "super." + expr.method.lexeme;
+            if (!superScope.locals.containsKey(name))
+            {
+                declareSynthetic(superScope, name);
+                superClassStmt.superMethods.add(expr.method.lexeme);
+            }
+            resolveLocal(expr, new Token(TokenType.SUPER, name, null, expr.keyword.line));
+            // 调用父类方法时的接收者就是当前方法的 this
+            expr.receiver = new Expr.This(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+            resolveLocal(expr.receiver, expr.receiver.keyword);
+        }
         return null;
     }
 
@@ -246,41 +420,105 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     public Void visitLogicalExpr(Expr.Logical expr)
     {
         resolve(expr.left);
+        // 右侧可能被短路，其中的赋值不算数
+        Set<Local> afterLeft = copyAssigned();
         resolve(expr.right);
+        assigned = afterLeft;
         return null;
     }
 
     @Override
     public Void visitUnaryExpr(Expr.Unary expr)
     {
+        markOperand(expr.right);
         resolve(expr.right);
         return null;
     }
 
-    private void define(Token name)
+    private void define(Token name, boolean initialized)
     {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        Local local = scopes.peek().locals.get(name.lexeme);
+        local.defined = true;
+        // 循环中再次执行到没有初始化式的声明时，变量会重新回到未初始化状态
+        if (initialized) markAssigned(local);
+        else if (assigned != null) assigned.remove(local);
+    }
+
+    private void markAssigned(Local local)
+    {
+        if (assigned != null) assigned.add(local);
+    }
+
+    private Set<Local> copyAssigned()
+    {
+        return assigned == null ? null : new HashSet<>(assigned);
+    }
+
+    // 两条控制流汇合：只有两边都一定赋过值的变量才算赋过值，不可达的一边不参与
+    private static Set<Local> merge(Set<Local> a, Set<Local> b)
+    {
+        if (a == null) return b;
+        if (b == null) return a;
+        a.retainAll(b);
+        return a;
+    }
+
+    // 作为运算数读取未初始化的变量是运行时错误，其它位置读到的仍是 nil
+    private static void markOperand(Expr operand)
+    {
+        if (operand instanceof Expr.Variable) ((Expr.Variable) operand).isOperand = true;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr)
     {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE)
+        if (!scopes.isEmpty() && scopes.peek().locals.containsKey(expr.name.lexeme) &&
+                !scopes.peek().locals.get(expr.name.lexeme).defined)
         {
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        Local local = resolveLocal(expr, expr.name);
+        // 全局变量可能在任何时候被读取，总要在运行时检查
+        expr.isInitialized = local != null && (assigned == null || assigned.contains(local));
         return null;
     }
 
     @Override
     public Void visitThreeWayExpr(Expr.ThreeWay expr)
     {
+        markOperand(expr.judge);
+        markOperand(expr.left);
+        markOperand(expr.right);
         resolve(expr.judge);
+        Set<Local> beforeArms = copyAssigned();
         resolve(expr.left);
+        Set<Local> afterLeft = assigned;
+        assigned = beforeArms;
         resolve(expr.right);
+        assigned = merge(afterLeft, assigned);
+        return null;
+    }
+
+    // 内联的函数体在调用点所在的帧中求值，参数是新作用域中的局部变量。解析实参之前先占好参数的槽位，
+    // 实参中嵌套的内联就不会用到同样的槽位；参数改过名，实参不会解析到它们
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr)
+    {
+        beginScope();
+        expr.slot = nextSlot;
+        for (Token param : expr.params)
+        {
+            declare(param, null, -1);
+        }
+        resolve(expr.call);
+        for (Token param : expr.params)
+        {
+            define(param, true);
+        }
+        resolve(expr.body);
+        endScope();
         return null;
     }
 
@@ -288,59 +526,181 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     public Void visitAssignExpr(Expr.Assign expr)
     {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Local local = resolveLocal(expr, expr.name);
+        if (local != null) markAssigned(local);
         return null;
     }
 
     private void beginScope()
     {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), nextSlot));
     }
 
-    private void endScope()
+    private Scope endScope()
     {
-        scopes.pop();
+        Scope scope = scopes.pop();
+        for (Local local : scope.locals.values())
+        {
+            if (local.captured) local.envSlot = scope.envSize++;
+        }
+
+        for (Local local : scope.locals.values())
+        {
+            int slot = local.captured ? local.envSlot : local.frameSlot;
+            if (local.param >= 0)
+            {
+                ((Stmt.Function) local.declaration).paramSlots[local.param] = local.captured ? slot : -1;
+            } else if (local.declaration != null)
+            {
+                setAddress(local.declaration, local.captured ? 0 : FRAME, slot);
+            }
+
+            for (int i = 0; i < local.uses.size(); i++)
+            {
+                int depth = local.captured ? distance(local.useScopes.get(i), scope) : FRAME;
+                setAddress(local.uses.get(i), depth, slot);
+            }
+        }
+
+        // 作用域结束后它占用的帧槽位可以留给后面的兄弟作用域
+        nextSlot = scope.frameBase;
+        return scope;
     }
 
+    // from 到 to 之间(不含 to)运行时真正创建了 Environment 的作用域个数
+    private static int distance(Scope from, Scope to)
+    {
+        int depth = 0;
+        for (Scope scope = from; scope != to; scope = scope.enclosing)
+        {
+            if (scope.envSize > 0) depth++;
+        }
+        return depth;
+    }
 
     private void resolveFunction(Stmt.Function function, FunctionType type)
     {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        // 函数只能在声明之后被调用，所以声明处已经赋值的外层变量在函数体中也一定已经赋值；
+        // 而函数体中的赋值不会在声明时发生
+        Set<Local> enclosingAssigned = assigned;
+        assigned = copyAssigned();
+        int enclosingNextSlot = nextSlot;
+        int enclosingFrameSize = frameSize;
+        List<Stmt.While> enclosingLoops = loops;
+        loops = new ArrayList<>();
+        functionDepth++;
+        nextSlot = 0;
+        frameSize = 0;
 
         beginScope();
-        for (Token param : function.params)
+        int arity = function.params.size();
+        boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+        function.paramSlots = new int[isMethod ? arity + 1 : arity];
+        for (int i = 0; i < arity; i++)
+        {
+            Token param = function.params.get(i);
+            declare(param, function, i);
+            define(param, true);
+        }
+        // 方法的 this 是排在参数之后的隐含参数，调用时直接传入接收者
+        if (isMethod)
         {
-            declare(param);
-            define(param);
+            Token self = new Token(TokenType.THIS, "this", null, function.name.line);
+            declare(self, function, arity);
+            define(self, true);
         }
         resolve(function.body);
-        endScope();
+        function.envSize = endScope().envSize;
+        function.frameSize = frameSize;
+
+        functionDepth--;
+        nextSlot = enclosingNextSlot;
+        frameSize = enclosingFrameSize;
+        loops = enclosingLoops;
+        assigned = enclosingAssigned;
         currentFunction = enclosingFunction;
     }
 
-    private void declare(Token name)
+    private void declare(Token name, Stmt declaration, int param)
     {
-        if (scopes.isEmpty()) return;
+        if (scopes.isEmpty())
+        {
+            setAddress(declaration, GLOBAL, interpreter.globals.indexOf(name.lexeme));
+            return;
+        }
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Local> scope = scopes.peek().locals;
         if (scope.containsKey(name.lexeme))
         {
             Lox.error(name, "Already a variable with this name in this scope.");
+            return;
         }
-        scope.put(name.lexeme, false);
+        scope.put(name.lexeme, new Local(functionDepth, nextSlot++, declaration, param));
+        frameSize = Math.max(frameSize, nextSlot);
     }
 
-    private void resolveLocal(Expr expr, Token name)
+    // super.method 总是放在 Environment 中，由 visitClassStmt 在运行时创建
+    private void declareSynthetic(Scope scope, String name)
+    {
+        Local local = new Local(functionDepth, -1, null, -1);
+        local.defined = true;
+        local.captured = true;
+        scope.locals.put(name, local);
+    }
+
+    private Local resolveLocal(Expr expr, Token name)
     {
         for (int i = scopes.size() - 1; i >= 0; i--)
         {
-            if (scopes.get(i).containsKey(name.lexeme))
+            Local local = scopes.get(i).locals.get(name.lexeme);
+            if (local != null)
             {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                // 在声明它的函数之外被引用，说明变量被闭包捕获了
+                if (local.function != functionDepth) local.captured = true;
+                local.uses.add(expr);
+                local.useScopes.add(scopes.peek());
+                return local;
             }
         }
+
+        // 全局变量的下标在解析时就确定下来并缓存在节点上，运行时不再按名字查找
+        setAddress(expr, GLOBAL, interpreter.globals.indexOf(name.lexeme));
+        return null;
+    }
+
+    private static void setAddress(Object node, int depth, int slot)
+    {
+        if (node instanceof Expr.Variable)
+        {
+            ((Expr.Variable) node).depth = depth;
+            ((Expr.Variable) node).slot = slot;
+        } else if (node instanceof Expr.Assign)
+        {
+            ((Expr.Assign) node).depth = depth;
+            ((Expr.Assign) node).slot = slot;
+        } else if (node instanceof Expr.This)
+        {
+            ((Expr.This) node).depth = depth;
+            ((Expr.This) node).slot = slot;
+        } else if (node instanceof Expr.Super)
+        {
+            ((Expr.Super) node).depth = depth;
+            ((Expr.Super) node).slot = slot;
+        } else if (node instanceof Stmt.Var)
+        {
+            ((Stmt.Var) node).depth = depth;
+            ((Stmt.Var) node).slot = slot;
+        } else if (node instanceof Stmt.Function)
+        {
+            ((Stmt.Function) node).depth = depth;
+            ((Stmt.Function) node).slot = slot;
+        } else if (node instanceof Stmt.Class)
+        {
+            ((Stmt.Class) node).depth = depth;
+            ((Stmt.Class) node).slot = slot;
+        }
     }
 
     private void resolve(Stmt stmt)
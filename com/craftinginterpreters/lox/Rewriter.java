@@ -0,0 +1,266 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 在 Resolver 之后改写语法树的遍，默认原样保留每个节点，子类只覆盖需要改写的节点。
+// 节点的字段不可修改，子树有变化时生成新的父节点，没有变化的子树原样保留；改写后的语法树要重新解析一遍
+abstract class Rewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt>
+{
+    // 没有任何变化时返回原来的列表
+    List<Stmt> rewrite(List<Stmt> statements)
+    {
+        List<Stmt> result = new ArrayList<>();
+        boolean changed = false;
+        for (Stmt statement : statements)
+        {
+            Stmt rewritten = rewrite(statement);
+            if (rewritten != statement) changed = true;
+            if (rewritten != null) result.add(rewritten);
+        }
+        return changed ? result : statements;
+    }
+
+    // 返回 null 表示整条语句都可以删掉
+    Stmt rewrite(Stmt stmt)
+    {
+        return stmt.accept(this);
+    }
+
+    // 用在只能放一条语句的位置上，删掉的语句换成空块
+    Stmt rewriteBranch(Stmt stmt)
+    {
+        Stmt rewritten = rewrite(stmt);
+        return rewritten == null ? new Stmt.Block(new ArrayList<>()) : rewritten;
+    }
+
+    Expr rewrite(Expr expr)
+    {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    List<Expr> rewriteAll(List<Expr> expressions)
+    {
+        List<Expr> result = new ArrayList<>(expressions.size());
+        boolean changed = false;
+        for (Expr expr : expressions)
+        {
+            Expr rewritten = rewrite(expr);
+            if (rewritten != expr) changed = true;
+            result.add(rewritten);
+        }
+        return changed ? result : expressions;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt)
+    {
+        List<Stmt> statements = rewrite(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt)
+    {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods)
+        {
+            Stmt.Function rewritten = (Stmt.Function) rewrite(method);
+            if (rewritten != method) changed = true;
+            methods.add(rewritten);
+        }
+        if (!changed) return stmt;
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt)
+    {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt)
+    {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewriteBranch(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+        {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt)
+    {
+        List<Stmt> body = rewrite(stmt.body);
+        if (body == stmt.body) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt)
+    {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt)
+    {
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    // 循环体里的 break、continue 指向这个节点，换成新节点之后由重新解析来更新
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt)
+    {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewriteBranch(stmt.body);
+        Expr increment = rewrite(stmt.increment);
+        if (condition == stmt.condition && body == stmt.body && increment == stmt.increment) return stmt;
+        return new Stmt.While(stmt.label, condition, body, increment);
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt)
+    {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt)
+    {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt)
+    {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr)
+    {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr)
+    {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = rewriteAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr)
+    {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr)
+    {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr)
+    {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr)
+    {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr)
+    {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr)
+    {
+        Expr object = rewrite(expr.object);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr)
+    {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr)
+    {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr)
+    {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr)
+    {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThreeWayExpr(Expr.ThreeWay expr)
+    {
+        Expr judge = rewrite(expr.judge);
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (judge == expr.judge && left == expr.left && right == expr.right) return expr;
+        return new Expr.ThreeWay(judge, expr.operator, left, right);
+    }
+
+    // 内联的函数体是这个调用点独有的副本，和实参一样可以改写
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr)
+    {
+        List<Expr> arguments = rewriteAll(expr.call.arguments);
+        Expr body = rewrite(expr.body);
+        if (arguments == expr.call.arguments && body == expr.body) return expr;
+        Expr.Call call = new Expr.Call(expr.call.callee, expr.call.paren, arguments);
+        return new Expr.Inline(call, expr.function, expr.params, body);
+    }
+}
\ No newline at end of file
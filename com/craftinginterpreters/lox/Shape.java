@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// 实例的布局：字段名到 LoxInstance.values 中下标的映射。同一个类的实例都从类的空布局出发，
+// 按相同顺序添加字段的实例共用同一个布局对象，添加新字段时转到子布局
+final class Shape
+{
+    final LoxClass klass;
+    private final Map<String, Integer> slots;
+    // 从这个布局添加字段时的转换，同一个名字总是转到同一个子布局
+    private Map<String, Shape> transitions = null;
+
+    Shape(LoxClass klass)
+    {
+        this.klass = klass;
+        this.slots = new HashMap<>();
+    }
+
+    private Shape(Shape parent, String name)
+    {
+        this.klass = parent.klass;
+        this.slots = new HashMap<>(parent.slots);
+        slots.put(name, parent.slots.size());
+    }
+
+    int size()
+    {
+        return slots.size();
+    }
+
+    // 没有这个字段时返回 -1
+    int slotOf(String name)
+    {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // 新字段的下标就是原来的字段个数
+    Shape add(String name)
+    {
+        if (transitions == null) transitions = new HashMap<>();
+        Shape child = transitions.get(name);
+        if (child == null)
+        {
+            child = new Shape(this, name);
+            transitions.put(name, child);
+        }
+        return child;
+    }
+}
\ No newline at end of file
@@ -2,8 +2,8 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Stmt {
-  interface Visitor<R> {
+public abstract class Stmt {
+  public interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
@@ -13,21 +13,23 @@ abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitWhileStmt(While stmt);
     R visitBreakStmt(Break stmt);
+    R visitContinueStmt(Continue stmt);
     R visitVarStmt(Var stmt);
   }
-  static class Block extends Stmt {
+  public static class Block extends Stmt {
     Block(List<Stmt> statements) {
       this.statements = statements;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBlockStmt(this);
     }
 
-    final List<Stmt> statements;
+    public final List<Stmt> statements;
+    public int envSize;
   }
-  static class Class extends Stmt {
+  public static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
       this.name = name;
       this.superclass = superclass;
@@ -35,27 +37,30 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitClassStmt(this);
     }
 
-    final Token name;
-    final Expr.Variable superclass;
-    final List<Stmt.Function> methods;
+    public final Token name;
+    public final Expr.Variable superclass;
+    public final List<Stmt.Function> methods;
+    public int depth = -1;
+    public int slot;
+    public List<String> superMethods;
   }
-  static class Expression extends Stmt {
+  public static class Expression extends Stmt {
     Expression(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitExpressionStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class If extends Stmt {
+  public static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
       this.condition = condition;
       this.thenBranch = thenBranch;
@@ -63,15 +68,15 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfStmt(this);
     }
 
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
+    public final Expr condition;
+    public final Stmt thenBranch;
+    public final Stmt elseBranch;
   }
-  static class Function extends Stmt {
+  public static class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
       this.params = params;
@@ -79,80 +84,111 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionStmt(this);
     }
 
-    final Token name;
-    final List<Token> params;
-    final List<Stmt> body;
+    public final Token name;
+    public final List<Token> params;
+    public final List<Stmt> body;
+    public int depth = -1;
+    public int slot;
+    public int frameSize;
+    public int envSize;
+    public int[] paramSlots;
+    public int callCount;
+    public CompiledFunction compiled;
   }
-  static class Print extends Stmt {
+  public static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class Return extends Stmt {
+  public static class Return extends Stmt {
     Return(Token keyword, Expr value) {
       this.keyword = keyword;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitReturnStmt(this);
     }
 
-    final Token keyword;
-    final Expr value;
+    public final Token keyword;
+    public final Expr value;
   }
-  static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+  public static class While extends Stmt {
+    While(Token label, Expr condition, Stmt body, Expr increment) {
+      this.label = label;
       this.condition = condition;
       this.body = body;
+      this.increment = increment;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitWhileStmt(this);
     }
 
-    final Expr condition;
-    final Stmt body;
+    public final Token label;
+    public final Expr condition;
+    public final Stmt body;
+    public final Expr increment;
   }
-  static class Break extends Stmt {
-    Break(Token operator) {
-      this.operator = operator;
+  public static class Break extends Stmt {
+    Break(Token keyword, Token label) {
+      this.keyword = keyword;
+      this.label = label;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBreakStmt(this);
     }
 
-    final Token operator;
+    public final Token keyword;
+    public final Token label;
+    public Stmt.While loop;
+  }
+  public static class Continue extends Stmt {
+    Continue(Token keyword, Token label) {
+      this.keyword = keyword;
+      this.label = label;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitContinueStmt(this);
+    }
+
+    public final Token keyword;
+    public final Token label;
+    public Stmt.While loop;
   }
-  static class Var extends Stmt {
+  public static class Var extends Stmt {
     Var(Token name, Expr initializer) {
       this.name = name;
       this.initializer = initializer;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarStmt(this);
     }
 
-    final Token name;
-    final Expr initializer;
+    public final Token name;
+    public final Expr initializer;
+    public int depth = -1;
+    public int slot;
   }
 
-  abstract <R> R accept(Visitor<R> visitor);
+  public abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,372 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 语句编译后的可执行节点，execute 返回语句的结束方式，return 的值和 break、continue 的目标放在 Frame 中
+abstract class StmtNode
+{
+    abstract Completion execute(Frame frame);
+
+    // 编译好的函数体，LoxFunction 调用时在新的 Frame 中执行
+    static final class Body
+    {
+        private final int frameSize;
+        private final int[] paramSlots;
+        private final Block block;
+        // 和 Interpreter 的值栈一样，按调用深度复用已经分配的 Frame，返回时清空。
+        // 调用总是后进先出，同一个函数体的每一层递归各用一个 Frame
+        private Frame[] frames = new Frame[4];
+        private int depth = 0;
+
+        Body(int frameSize, int[] paramSlots, Block block)
+        {
+            this.frameSize = frameSize;
+            this.paramSlots = paramSlots;
+            this.block = block;
+        }
+
+        // 调用分三步：enter 取得这一层的 Frame，逐个写入参数，执行函数体之后由 exit 释放
+        Frame enter(Environment environment)
+        {
+            if (depth == frames.length) frames = Arrays.copyOf(frames, depth * 2);
+            Frame frame = frames[depth];
+            if (frame == null) frames[depth] = frame = new Frame(frameSize, environment);
+            else frame.environment = environment;
+            depth++;
+            return frame;
+        }
+
+        // 清掉这次调用留下的引用，避免返回之后对象仍然被复用的 Frame 引用着。
+        // 先退出这一层：栈溢出展开时清空的过程中可能再次溢出
+        void exit(Frame frame)
+        {
+            depth--;
+            Arrays.fill(frame.slots, null);
+            frame.environment = null;
+            frame.returnValue = null;
+            frame.loopTarget = null;
+        }
+
+        void bind(Frame frame, int index, Object value)
+        {
+            int slot = paramSlots[index];
+            if (slot < 0) frame.slots[index] = value;
+            else frame.environment.assignAt(0, slot, value);
+        }
+
+        Completion execute(Frame frame)
+        {
+            return block.execute(frame);
+        }
+    }
+
+    static final class Expression extends StmtNode
+    {
+        private final ExprNode expression;
+
+        Expression(ExprNode expression)
+        {
+            this.expression = expression;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            expression.execute(frame);
+            return Completion.NORMAL;
+        }
+    }
+
+    // 交互模式下表达式语句会打印自己的值
+    static final class Echo extends StmtNode
+    {
+        private final ExprNode expression;
+
+        Echo(ExprNode expression)
+        {
+            this.expression = expression;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            System.out.println(Interpreter.stringify(expression.execute(frame)));
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Print extends StmtNode
+    {
+        private final ExprNode expression;
+
+        Print(ExprNode expression)
+        {
+            this.expression = expression;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            System.out.println(Interpreter.stringify(expression.execute(frame)));
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class DefineLocal extends StmtNode
+    {
+        private final int slot;
+        private final ExprNode value;
+
+        DefineLocal(int slot, ExprNode value)
+        {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            frame.slots[slot] = value.execute(frame);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class DefineCaptured extends StmtNode
+    {
+        private final int slot;
+        private final ExprNode value;
+
+        DefineCaptured(int slot, ExprNode value)
+        {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            Object result = value.execute(frame);
+            frame.environment.assignAt(0, slot, result);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class DefineGlobal extends StmtNode
+    {
+        private final Environment globals;
+        private final int slot;
+        private final ExprNode value;
+
+        DefineGlobal(Environment globals, int slot, ExprNode value)
+        {
+            this.globals = globals;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            globals.defineGlobal(slot, value.execute(frame));
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Block extends StmtNode
+    {
+        private final StmtNode[] statements;
+        private final int envSize;
+
+        Block(StmtNode[] statements, int envSize)
+        {
+            this.statements = statements;
+            this.envSize = envSize;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            Environment previous = frame.environment;
+            if (envSize > 0) frame.environment = new Environment(previous, envSize);
+            try
+            {
+                for (StmtNode statement : statements)
+                {
+                    Completion completion = statement.execute(frame);
+                    if (completion != Completion.NORMAL) return completion;
+                }
+                return Completion.NORMAL;
+            } finally
+            {
+                frame.environment = previous;
+            }
+        }
+    }
+
+    static final class If extends StmtNode
+    {
+        private final ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch)
+        {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            if (Interpreter.isTruthy(condition.execute(frame)))
+            {
+                return thenBranch.execute(frame);
+            } else if (elseBranch != null)
+            {
+                return elseBranch.execute(frame);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class While extends StmtNode
+    {
+        private final Stmt.While loop;
+        private final ExprNode condition;
+        private final StmtNode body;
+        private final ExprNode increment;
+
+        While(Stmt.While loop, ExprNode condition, StmtNode body, ExprNode increment)
+        {
+            this.loop = loop;
+            this.condition = condition;
+            this.body = body;
+            this.increment = increment;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            while (Interpreter.isTruthy(condition.execute(frame)))
+            {
+                Completion completion = body.execute(frame);
+                if (completion != Completion.NORMAL)
+                {
+                    if (completion == Completion.RETURN || frame.loopTarget != loop) return completion;
+                    if (completion == Completion.BREAK) break;
+                }
+                if (increment != null) increment.execute(frame);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    // break 和 continue 的目标循环在解析时已经确定
+    static final class Jump extends StmtNode
+    {
+        private final Stmt.While loop;
+        private final Completion completion;
+
+        Jump(Stmt.While loop, Completion completion)
+        {
+            this.loop = loop;
+            this.completion = completion;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            frame.loopTarget = loop;
+            return completion;
+        }
+    }
+
+    static final class Return extends StmtNode
+    {
+        private final ExprNode value;
+
+        Return(ExprNode value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            frame.returnValue = value == null ? null : value.execute(frame);
+            return Completion.RETURN;
+        }
+    }
+
+    static final class Class extends StmtNode
+    {
+        private final Environment globals;
+        private final Token name;
+        private final ExprNode superclass;
+        private final Token superclassName;
+        private final Stmt.Function[] methods;
+        private final Body[] bodies;
+        private final List<String> superMethods;
+        private final int depth;
+        private final int slot;
+
+        Class(Environment globals, Stmt.Class stmt, ExprNode superclass, Body[] bodies)
+        {
+            this.globals = globals;
+            this.name = stmt.name;
+            this.superclass = superclass;
+            this.superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+            this.methods = stmt.methods.toArray(new Stmt.Function[0]);
+            this.bodies = bodies;
+            this.superMethods = stmt.superMethods;
+            this.depth = stmt.depth;
+            this.slot = stmt.slot;
+        }
+
+        @Override
+        Completion execute(Frame frame)
+        {
+            Object parent = null;
+            if (superclass != null)
+            {
+                parent = superclass.execute(frame);
+                if (!(parent instanceof LoxClass))
+                {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+            }
+            define(frame, null);
+            Environment environment = frame.environment;
+            if (!superMethods.isEmpty()) environment = ((LoxClass) parent).superMethods(environment, superMethods);
+
+            Map<String, LoxFunction> table = new HashMap<>();
+            for (int i = 0; i < methods.length; i++)
+            {
+                Stmt.Function method = methods[i];
+                boolean isInitializer = method.name.lexeme.equals("init");
+                table.put(method.name.lexeme, new LoxFunction(method, environment, isInitializer, bodies[i]));
+            }
+
+            define(frame, new LoxClass(name.lexeme, (LoxClass) parent, table));
+            return Completion.NORMAL;
+        }
+
+        private void define(Frame frame, Object value)
+        {
+            if (depth == Resolver.FRAME)
+            {
+                frame.slots[slot] = value;
+            } else if (depth == Resolver.GLOBAL)
+            {
+                globals.defineGlobal(slot, value);
+            } else
+            {
+                frame.environment.assignAt(0, slot, value);
+            }
+        }
+    }
+}
\ No newline at end of file
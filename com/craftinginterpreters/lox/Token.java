@@ -1,11 +1,11 @@
 package com.craftinginterpreters.lox;
 
-class Token
+public class Token
 {
-    final TokenType type;
-    final String lexeme;
-    final Object literal;
-    final int line;
+    public final TokenType type;
+    public final String lexeme;
+    public final Object literal;
+    public final int line;
 
     Token(TokenType type, String lexeme, Object literal, int line)
     {
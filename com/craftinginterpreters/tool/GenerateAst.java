@@ -15,24 +15,39 @@ public class GenerateAst
             System.exit(64);
         }
         String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList("Binary: Expr left, Token operator, Expr right",
-                                                   "Call: Expr callee, Token paren, List<Expr> arguments",
-                                                   "Get: Expr object, Token name", "Assign: Token name, Expr value",
+        defineAst(outputDir, "Expr", Arrays.asList("Binary: Expr left, Token operator, Expr right | int specialization",
+                                                   "Call: Expr callee, Token paren, List<Expr> arguments | LoxCallSite site," +
+                                                           " boolean isTailCall",
+                                                   "Get: Expr object, Token name | PropertyCache cache",
+                                                   "Assign: Token name, Expr value | int depth = -1, int slot",
                                                    "Grouping: Expr expression", "Literal: Object value",
                                                    "Logical  : Expr left, Token operator, Expr right",
-                                                   "Set: Expr object, Token name, Expr value", "This: Token keyword",
-                                                   "Super: Token keyword, Token method",
-                                                   "Unary: Token operator, Expr right", "Variable : Token name",
-                                                   "ThreeWay : Expr judge, Token operator, Expr left, Expr right"));
-        defineAst(outputDir, "Stmt", Arrays.asList("Block: List<Stmt> statements",
+                                                   "Set: Expr object, Token name, Expr value | PropertyCache cache",
+                                                   "This: Token keyword | int depth = -1, int slot",
+                                                   "Super: Token keyword, Token method | int depth = -1, int slot," +
+                                                           " Expr.This receiver",
+                                                   "Unary: Token operator, Expr right | int specialization",
+                                                   "Variable : Token name | int depth = -1, int slot, boolean isOperand," +
+                                                           " boolean isInitialized",
+                                                   "ThreeWay : Expr judge, Token operator, Expr left, Expr right",
+                                                   "Inline: Expr.Call call, Stmt.Function function, List<Token> params," +
+                                                           " Expr body | int slot"));
+        defineAst(outputDir, "Stmt", Arrays.asList("Block: List<Stmt> statements | int envSize",
                                                    "Class: Token name, Expr.Variable superclass," + " List<Stmt" +
-                                                           ".Function> methods",
+                                                           ".Function> methods | int depth = -1, int slot," +
+                                                           " List<String> superMethods",
                                                    "Expression : Expr expression",
                                                    "If: Expr condition, Stmt thenBranch," + " Stmt elseBranch",
-                                                   "Function: Token name, List<Token> params," + " List<Stmt> body",
+                                                   "Function: Token name, List<Token> params," + " List<Stmt> body" +
+                                                           " | int depth = -1, int slot, int frameSize," +
+                                                           " int envSize, int[] paramSlots, int callCount," +
+                                                           " CompiledFunction compiled",
                                                    "Print: Expr expression", "Return: Token keyword, Expr value",
-                                                   "While: Expr condition, Stmt body", "Break:Token operator ",
-                                                   "Var: Token name, Expr initializer"));
+                                                   "While: Token label, Expr condition, Stmt body," +
+                                                           " Expr increment",
+                                                   "Break: Token keyword, Token label | Stmt.While loop",
+                                                   "Continue: Token keyword, Token label | Stmt.While loop",
+                                                   "Var: Token name, Expr initializer | int depth = -1, int slot"));
     }
 
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException
@@ -44,7 +59,7 @@ public class GenerateAst
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        writer.println("public abstract class " + baseName + " {");
 
         defineVisitor(writer, baseName, types);
 
@@ -53,11 +68,18 @@ public class GenerateAst
         {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            // '|' 之后是解析器回填的可变字段，不出现在构造函数中
+            String resolved = null;
+            if (fields.contains("|"))
+            {
+                resolved = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, resolved);
         }
         // The base accept() method.
         writer.println();
-        writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+        writer.println("  public abstract <R> R accept(Visitor<R> visitor);");
 
         writer.println("}");
         writer.close();
@@ -65,7 +87,7 @@ public class GenerateAst
 
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types)
     {
-        writer.println("  interface Visitor<R> {");
+        writer.println("  public interface Visitor<R> {");
 
         for (String type : types)
         {
@@ -76,9 +98,10 @@ public class GenerateAst
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList)
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+                                   String resolvedList)
     {
-        writer.println("  static class " + className + " extends " + baseName + " {");
+        writer.println("  public static class " + className + " extends " + baseName + " {");
 
         // Constructor.
         writer.println("    " + className + "(" + fieldList + ") {");
@@ -96,7 +119,7 @@ public class GenerateAst
         // Visitor pattern.
         writer.println();
         writer.println("    @Override");
-        writer.println("    <R> R accept(Visitor<R> visitor) {");
+        writer.println("    public <R> R accept(Visitor<R> visitor) {");
         writer.println("      return visitor.visit" + className + baseName + "(this);");
         writer.println("    }");
 
@@ -104,7 +127,14 @@ public class GenerateAst
         writer.println();
         for (String field : fields)
         {
-            writer.println("    final " + field + ";");
+            writer.println("    public final " + field + ";");
+        }
+        if (resolvedList != null)
+        {
+            for (String field : resolvedList.split(", "))
+            {
+                writer.println("    public " + field + ";");
+            }
         }
 
         writer.println("  }");
@@ -0,0 +1,47 @@
+package com.craftinginterpreters.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// 一个函数的字节码：指令、每个字节对应的源代码行号和常量池
+class Chunk
+{
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+    // 编译结束后常量池转成数组，执行时按下标直接读取
+    Object[] constantTable;
+
+    void write(int value, int line)
+    {
+        if (count == code.length)
+        {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) value;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value)
+    {
+        // 数字和字符串常量在同一个函数内只保存一份
+        if (value instanceof Double || value instanceof String)
+        {
+            int index = constants.indexOf(value);
+            if (index >= 0) return index;
+        }
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    void finish()
+    {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constantTable = constants.toArray();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,775 @@
+package com.craftinginterpreters.vm;
+
+import com.craftinginterpreters.lox.Expr;
+import com.craftinginterpreters.lox.Stmt;
+import com.craftinginterpreters.lox.Token;
+import com.craftinginterpreters.lox.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.vm.OpCode.*;
+
+// 把已经通过 Resolver 检查的语法树编译成字节码。局部变量放在值栈上，
+// 被内层函数引用的变量通过 upvalue 访问，分配方式与 clox 相同
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void>
+{
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_SHORT = 65535;
+
+    private enum FunctionType
+    {
+        FUNCTION, INITIALIZER, METHOD, SCRIPT
+    }
+
+    private static class Local
+    {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth)
+        {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue
+    {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal)
+        {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    // 正在编译的循环，记录还没有回填的 break 和 continue 跳转
+    private static class Loop
+    {
+        final Loop enclosing;
+        final Stmt.While stmt;
+        final int scopeDepth;
+        final List<Integer> breaks = new ArrayList<>();
+        final List<Integer> continues = new ArrayList<>();
+
+        Loop(Loop enclosing, Stmt.While stmt, int scopeDepth)
+        {
+            this.enclosing = enclosing;
+            this.stmt = stmt;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState
+    {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+        int stackDepth = 0;
+
+        FunctionState(FunctionState enclosing, ObjFunction function, FunctionType type)
+        {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private final VM vm;
+    private final boolean echo;
+    private FunctionState current = null;
+    private int line = 0;
+    private boolean hadError = false;
+    // 正在编译的 return 语句中处在尾部位置的调用
+    private Expr.Call tailCall = null;
+
+    Compiler(VM vm, boolean echo)
+    {
+        this.vm = vm;
+        this.echo = echo;
+    }
+
+    ObjFunction compile(List<Stmt> statements)
+    {
+        begin(new ObjFunction(null, 0), FunctionType.SCRIPT);
+        for (Stmt statement : statements)
+        {
+            statement.accept(this);
+        }
+        ObjFunction function = end().function;
+        return hadError ? null : function;
+    }
+
+    private void begin(ObjFunction function, FunctionType type)
+    {
+        current = new FunctionState(current, function, type);
+        // 0 号槽位是被调用的函数本身，方法中是 this
+        boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+        current.locals.add(new Local(isMethod ? "this" : "", 0));
+        current.stackDepth = 1;
+        function.maxStack = 1;
+    }
+
+    private FunctionState end()
+    {
+        emitReturn();
+        FunctionState state = current;
+        state.function.upvalueCount = state.upvalues.size();
+        state.function.chunk.finish();
+        current = state.enclosing;
+        return state;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type)
+    {
+        begin(new ObjFunction(stmt.name.lexeme, stmt.params.size()), type);
+        beginScope();
+        for (Token param : stmt.params)
+        {
+            addLocal(param.lexeme);
+        }
+        // 参数在调用前已经由调用者压栈
+        current.stackDepth += stmt.params.size();
+        current.function.maxStack = current.stackDepth;
+
+        for (Stmt statement : stmt.body)
+        {
+            statement.accept(this);
+        }
+        FunctionState state = end();
+
+        line = stmt.name.line;
+        emitOp(OP_CLOSURE);
+        emitShort(makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues)
+        {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    private void beginScope()
+    {
+        current.scopeDepth++;
+    }
+
+    private void endScope()
+    {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth)
+        {
+            emitOp(locals.get(locals.size() - 1).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void addLocal(String name)
+    {
+        if (current.locals.size() == MAX_LOCALS)
+        {
+            error("Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    // 局部变量就是初始值在值栈上所在的槽位；全局变量按名字分配下标
+    private void declareVariable(Token name)
+    {
+        if (current.scopeDepth > 0) addLocal(name.lexeme);
+    }
+
+    private void defineVariable(Token name)
+    {
+        if (current.scopeDepth > 0) return;
+        emitOp(OP_DEFINE_GLOBAL);
+        emitShort(globalSlot(name.lexeme));
+    }
+
+    private int globalSlot(String name)
+    {
+        int slot = vm.globalSlot(name);
+        if (slot > MAX_SHORT) error("Too many global variables.");
+        return slot;
+    }
+
+    private static int resolveLocal(FunctionState state, String name)
+    {
+        for (int i = state.locals.size() - 1; i >= 0; i--)
+        {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name)
+    {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1)
+        {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) return addUpvalue(state, upvalue, false);
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal)
+    {
+        for (int i = 0; i < state.upvalues.size(); i++)
+        {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+        if (state.upvalues.size() == MAX_UPVALUES)
+        {
+            error("Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void getVariable(String name, int line)
+    {
+        this.line = line;
+        int arg = resolveLocal(current, name);
+        if (arg != -1)
+        {
+            emitOp(OP_GET_LOCAL);
+            emitByte(arg);
+        } else if ((arg = resolveUpvalue(current, name)) != -1)
+        {
+            emitOp(OP_GET_UPVALUE);
+            emitByte(arg);
+        } else
+        {
+            emitOp(OP_GET_GLOBAL);
+            emitShort(globalSlot(name));
+        }
+    }
+
+    private void compile(Expr expr)
+    {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt)
+    {
+        beginScope();
+        for (Stmt statement : stmt.statements)
+        {
+            statement.accept(this);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt)
+    {
+        // 父类在类名定义之前求值并检查，与解释器的顺序一致
+        if (stmt.superclass != null)
+        {
+            compile(stmt.superclass);
+            line = stmt.superclass.name.line;
+            emitOp(OP_CHECK_SUPERCLASS);
+        }
+
+        line = stmt.name.line;
+        int name = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        emitOp(OP_CLASS);
+        emitShort(name);
+        defineVariable(stmt.name);
+
+        if (stmt.superclass != null)
+        {
+            beginScope();
+            addLocal("super");
+            compile(stmt.superclass);
+            getVariable(stmt.name.lexeme, stmt.name.line);
+            emitOp(OP_INHERIT);
+        }
+
+        getVariable(stmt.name.lexeme, stmt.name.line);
+        for (Stmt.Function method : stmt.methods)
+        {
+            boolean isInitializer = method.name.lexeme.equals("init");
+            function(method, isInitializer ? FunctionType.INITIALIZER : FunctionType.METHOD);
+            line = method.name.line;
+            emitOp(OP_METHOD);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+        emitOp(OP_POP);
+
+        if (stmt.superclass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt)
+    {
+        compile(stmt.expression);
+        emitOp(echo ? OP_ECHO : OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt)
+    {
+        compile(stmt.condition);
+        int thenJump = emitJump(OP_JUMP_IF_FALSE);
+        emitOp(OP_POP);
+        stmt.thenBranch.accept(this);
+        int elseJump = emitJump(OP_JUMP);
+
+        patchJump(thenJump);
+        // 跳到这里时条件值还在栈上
+        current.stackDepth++;
+        emitOp(OP_POP);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt)
+    {
+        declareVariable(stmt.name);
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt)
+    {
+        compile(stmt.expression);
+        emitOp(OP_PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt)
+    {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER || stmt.value == null)
+        {
+            emitReturn();
+            return null;
+        }
+        Expr.Call previous = tailCall;
+        tailCall = tailCallOf(stmt.value);
+        compile(stmt.value);
+        tailCall = previous;
+        emitOp(OP_RETURN);
+        return null;
+    }
+
+    // return 的值本身，以及穿过分组和 and、or 右边的调用。?: 的右分支求值之后还要执行 OP_SELECT，不是尾调用
+    private static Expr.Call tailCallOf(Expr expr)
+    {
+        if (expr instanceof Expr.Call) return (Expr.Call) expr;
+        if (expr instanceof Expr.Grouping) return tailCallOf(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Logical) return tailCallOf(((Expr.Logical) expr).right);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt)
+    {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emitOp(OP_POP);
+
+        Loop loop = new Loop(current.loop, stmt, current.scopeDepth);
+        current.loop = loop;
+        stmt.body.accept(this);
+        current.loop = loop.enclosing;
+        // continue 跳到增量子句，没有增量子句时直接回到条件
+        for (int jump : loop.continues)
+        {
+            patchJump(jump);
+        }
+        if (stmt.increment != null)
+        {
+            compile(stmt.increment);
+            emitOp(OP_POP);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        current.stackDepth++;
+        emitOp(OP_POP);
+        for (int jump : loop.breaks)
+        {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt)
+    {
+        line = stmt.keyword.line;
+        jumpOut(stmt.loop).breaks.add(emitJump(OP_JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt)
+    {
+        line = stmt.keyword.line;
+        jumpOut(stmt.loop).continues.add(emitJump(OP_JUMP));
+        return null;
+    }
+
+    // 弹出目标循环体中声明的局部变量，返回目标循环。Resolver 保证它在当前函数中
+    private Loop jumpOut(Stmt.While target)
+    {
+        Loop loop = current.loop;
+        while (loop.stmt != target) loop = loop.enclosing;
+
+        int depth = current.stackDepth;
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > loop.scopeDepth; i--)
+        {
+            emitOp(locals.get(i).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+        }
+        current.stackDepth = depth;
+        return loop;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt)
+    {
+        declareVariable(stmt.name);
+        if (stmt.initializer != null)
+        {
+            compile(stmt.initializer);
+        } else
+        {
+            emitOp(OP_UNINITIALIZED);
+        }
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr)
+    {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA)
+        {
+            emitOp(OP_POP);
+            compile(expr.right);
+            return null;
+        }
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type)
+        {
+            case PLUS:
+                emitOp(OP_ADD);
+                break;
+            case MINUS:
+                emitOp(OP_SUBTRACT);
+                break;
+            case STAR:
+                emitOp(OP_MULTIPLY);
+                break;
+            case SLASH:
+                emitOp(OP_DIVIDE);
+                break;
+            case GREATER:
+                emitOp(OP_GREATER);
+                break;
+            case GREATER_EQUAL:
+                emitOp(OP_GREATER_EQUAL);
+                break;
+            case LESS:
+                emitOp(OP_LESS);
+                break;
+            case LESS_EQUAL:
+                emitOp(OP_LESS_EQUAL);
+                break;
+            case EQUAL_EQUAL:
+                emitOp(OP_EQUAL);
+                break;
+            case BANG_EQUAL:
+                emitOp(OP_NOT_EQUAL);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr)
+    {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments)
+        {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitOp(expr == tailCall ? OP_TAIL_CALL : OP_CALL);
+        emitByte(expr.arguments.size());
+        current.stackDepth -= expr.arguments.size();
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr)
+    {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OP_GET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr)
+    {
+        compile(expr.value);
+        line = expr.name.line;
+        int arg = resolveLocal(current, expr.name.lexeme);
+        if (arg != -1)
+        {
+            emitOp(OP_SET_LOCAL);
+            emitByte(arg);
+        } else if ((arg = resolveUpvalue(current, expr.name.lexeme)) != -1)
+        {
+            emitOp(OP_SET_UPVALUE);
+            emitByte(arg);
+        } else
+        {
+            emitOp(OP_SET_GLOBAL);
+            emitShort(globalSlot(expr.name.lexeme));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr)
+    {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr)
+    {
+        if (expr.value == null)
+        {
+            emitOp(OP_NIL);
+        } else if (expr.value instanceof Boolean)
+        {
+            emitOp((boolean) expr.value ? OP_TRUE : OP_FALSE);
+        } else
+        {
+            emitOp(OP_CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr)
+    {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR)
+        {
+            int elseJump = emitJump(OP_JUMP_IF_FALSE);
+            int endJump = emitJump(OP_JUMP);
+            patchJump(elseJump);
+            emitOp(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else
+        {
+            int endJump = emitJump(OP_JUMP_IF_FALSE);
+            emitOp(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr)
+    {
+        compile(expr.object);
+        // 解释器先检查对象再求值右边，this 一定是实例，不需要检查
+        if (!(expr.object instanceof Expr.This))
+        {
+            line = expr.name.line;
+            emitOp(OP_CHECK_INSTANCE);
+        }
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OP_SET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr)
+    {
+        getVariable("this", expr.keyword.line);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr)
+    {
+        getVariable("this", expr.keyword.line);
+        getVariable("super", expr.keyword.line);
+        line = expr.method.line;
+        emitOp(OP_GET_SUPER);
+        emitShort(makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr)
+    {
+        compile(expr.right);
+        line = expr.operator.line;
+        emitOp(expr.operator.type == TokenType.BANG ? OP_NOT : OP_NEGATE);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr)
+    {
+        getVariable(expr.name.lexeme, expr.name.line);
+        if (expr.isInitialized) return null;
+
+        // 未初始化的变量作为运算数时报错，其它地方当作 nil
+        line = expr.name.line;
+        if (expr.isOperand)
+        {
+            emitOp(OP_CHECK_INITIALIZED);
+            emitShort(makeConstant(expr.name.lexeme));
+        } else
+        {
+            emitOp(OP_NIL_IF_UNINITIALIZED);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr)
+    {
+        // 虚拟机的调用本身很便宜，内联的调用点按原来的调用编译
+        compile(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitThreeWayExpr(Expr.ThreeWay expr)
+    {
+        compile(expr.judge);
+        compile(expr.left);
+        compile(expr.right);
+        emitOp(OP_SELECT);
+        return null;
+    }
+
+    private void emitReturn()
+    {
+        if (current.type == FunctionType.INITIALIZER)
+        {
+            emitOp(OP_GET_LOCAL);
+            emitByte(0);
+        } else
+        {
+            emitOp(OP_NIL);
+        }
+        emitOp(OP_RETURN);
+    }
+
+    private void emitOp(byte op)
+    {
+        current.function.chunk.write(op, line);
+        current.stackDepth += STACK_EFFECT[op];
+        if (current.stackDepth > current.function.maxStack)
+        {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    private void emitByte(int value)
+    {
+        current.function.chunk.write(value, line);
+    }
+
+    private void emitShort(int value)
+    {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private int emitJump(byte op)
+    {
+        emitOp(op);
+        emitShort(0xffff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset)
+    {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if (jump > MAX_SHORT) error("Too much code to jump over.");
+
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart)
+    {
+        emitOp(OP_LOOP);
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > MAX_SHORT) error("Loop body too large.");
+        emitShort(offset);
+    }
+
+    private int makeConstant(Object value)
+    {
+        int index = current.function.chunk.addConstant(value);
+        if (index > MAX_SHORT)
+        {
+            error("Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private void error(String message)
+    {
+        System.err.println("[line " + line + "] Error: " + message);
+        hadError = true;
+    }
+}
\ No newline at end of file
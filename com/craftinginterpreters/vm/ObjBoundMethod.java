@@ -0,0 +1,19 @@
+package com.craftinginterpreters.vm;
+
+class ObjBoundMethod
+{
+    final Object receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method)
+    {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString()
+    {
+        return method.toString();
+    }
+}
\ No newline at end of file
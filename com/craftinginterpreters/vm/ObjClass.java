@@ -0,0 +1,22 @@
+package com.craftinginterpreters.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class ObjClass
+{
+    final String name;
+    // 继承时父类的方法被复制进来，查找方法不需要沿着继承链向上走
+    final Map<String, ObjClosure> methods = new HashMap<>();
+
+    ObjClass(String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
\ No newline at end of file
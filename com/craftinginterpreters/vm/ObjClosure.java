@@ -0,0 +1,19 @@
+package com.craftinginterpreters.vm;
+
+class ObjClosure
+{
+    final ObjFunction function;
+    final ObjUpvalue[] upvalues;
+
+    ObjClosure(ObjFunction function)
+    {
+        this.function = function;
+        this.upvalues = new ObjUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString()
+    {
+        return function.toString();
+    }
+}
\ No newline at end of file
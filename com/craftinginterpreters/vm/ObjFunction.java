@@ -0,0 +1,24 @@
+package com.craftinginterpreters.vm;
+
+class ObjFunction
+{
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    // 执行时最多占用的值栈槽位数，包括被调用者自身、参数、局部变量和临时值
+    int maxStack = 0;
+
+    ObjFunction(String name, int arity)
+    {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.vm;
+
+// 变量还在值栈上时 slot 指向它所在的槽位，离开作用域后值搬到 closed 中，slot 置为 -1
+class ObjUpvalue
+{
+    int slot;
+    Object closed;
+    // 按 slot 从大到小排列的打开状态的 upvalue 链表
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot, ObjUpvalue next)
+    {
+        this.slot = slot;
+        this.next = next;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,64 @@
+package com.craftinginterpreters.vm;
+
+// 指令编号。操作数紧跟在指令之后：常量、全局变量和跳转偏移占两个字节，局部变量、upvalue 和参数个数占一个字节
+final class OpCode
+{
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_NIL = 1;
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_UNINITIALIZED = 4;
+    static final byte OP_POP = 5;
+    static final byte OP_GET_LOCAL = 6;
+    static final byte OP_SET_LOCAL = 7;
+    static final byte OP_GET_GLOBAL = 8;
+    static final byte OP_DEFINE_GLOBAL = 9;
+    static final byte OP_SET_GLOBAL = 10;
+    static final byte OP_GET_UPVALUE = 11;
+    static final byte OP_SET_UPVALUE = 12;
+    // 读取 Resolver 不能证明已经赋过值的变量之后紧跟其中一条
+    static final byte OP_NIL_IF_UNINITIALIZED = 13;
+    static final byte OP_CHECK_INITIALIZED = 14;
+    static final byte OP_GET_PROPERTY = 15;
+    static final byte OP_SET_PROPERTY = 16;
+    static final byte OP_CHECK_INSTANCE = 17;
+    static final byte OP_GET_SUPER = 18;
+    static final byte OP_EQUAL = 19;
+    static final byte OP_NOT_EQUAL = 20;
+    static final byte OP_GREATER = 21;
+    static final byte OP_GREATER_EQUAL = 22;
+    static final byte OP_LESS = 23;
+    static final byte OP_LESS_EQUAL = 24;
+    static final byte OP_ADD = 25;
+    static final byte OP_SUBTRACT = 26;
+    static final byte OP_MULTIPLY = 27;
+    static final byte OP_DIVIDE = 28;
+    static final byte OP_NOT = 29;
+    static final byte OP_NEGATE = 30;
+    static final byte OP_SELECT = 31;
+    static final byte OP_PRINT = 32;
+    static final byte OP_ECHO = 33;
+    static final byte OP_JUMP = 34;
+    static final byte OP_JUMP_IF_FALSE = 35;
+    static final byte OP_LOOP = 36;
+    static final byte OP_CALL = 37;
+    // return 语句的值就是这次调用时使用：被调用的是 Lox 函数时复用当前的调用帧
+    static final byte OP_TAIL_CALL = 38;
+    static final byte OP_CLOSURE = 39;
+    static final byte OP_CLOSE_UPVALUE = 40;
+    static final byte OP_RETURN = 41;
+    static final byte OP_CLASS = 42;
+    static final byte OP_CHECK_SUPERCLASS = 43;
+    static final byte OP_INHERIT = 44;
+    static final byte OP_METHOD = 45;
+
+    // 每条指令对值栈深度的影响，OP_CALL 和 OP_TAIL_CALL 的影响取决于参数个数，由编译器另外计算
+    static final int[] STACK_EFFECT = {
+            1, 1, 1, 1, 1, -1, 1, 0, 1, -1, 0, 1, 0, 0, 0, 0, -1, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 0, 0,
+            -2, -1, -1, 0, 0, 0, 0, 0, 1, -1, -1, 1, -1, -1, -1,
+    };
+
+    private OpCode()
+    {
+    }
+}
\ No newline at end of file
@@ -0,0 +1,620 @@
+package com.craftinginterpreters.vm;
+
+import com.craftinginterpreters.lox.Stmt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.vm.OpCode.*;
+
+// 基于值栈的字节码虚拟机，执行 Compiler 生成的 Chunk
+public class VM
+{
+    public enum InterpretResult
+    {
+        OK, COMPILE_ERROR, RUNTIME_ERROR
+    }
+
+    // Lox 的调用帧都在 frames 中，调用深度不占用 Java 栈，只受这个上限限制
+    public static final int DEFAULT_MAX_DEPTH = 1 << 14;
+    // 已经分配了下标但还没有被定义的全局变量
+    private static final Object UNDEFINED = new Object();
+    // 声明时没有初始化式的变量在被赋值之前保存这个值，与 nil 区分开
+    static final Object UNINITIALIZED = new Object();
+
+    private static class CallFrame
+    {
+        ObjClosure closure;
+        int ip;
+        int base;
+    }
+
+    private static class RuntimeError extends RuntimeException
+    {
+        RuntimeError(String message)
+        {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globals = new Object[64];
+
+    private Object[] stack = new Object[256];
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // 指向值栈上仍然存活的变量的 upvalue，按槽位从高到低排列
+    private ObjUpvalue openUpvalues = null;
+    private final int maxDepth;
+
+    public VM()
+    {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    // maxDepth 是调用帧的个数上限，包括最外层的脚本，超过时报告 Stack overflow.
+    public VM(int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+        defineNative("clock", 0, arguments -> (double) System.currentTimeMillis() / 1000.0);
+    }
+
+    public InterpretResult interpret(List<Stmt> statements, boolean isInFile)
+    {
+        ObjFunction function = new Compiler(this, !isInFile).compile(statements);
+        if (function == null) return InterpretResult.COMPILE_ERROR;
+
+        ObjClosure closure = new ObjClosure(function);
+        ensureStack(function.maxStack);
+        stack[0] = closure;
+        pushFrame(closure, 0);
+        try
+        {
+            run();
+            return InterpretResult.OK;
+        } catch (RuntimeError error)
+        {
+            CallFrame frame = frames[frameCount - 1];
+            int line = frame.closure.function.chunk.lines[frame.ip - 1];
+            System.err.println(error.getMessage() + "\n[line " + line + "]");
+            return InterpretResult.RUNTIME_ERROR;
+        } finally
+        {
+            Arrays.fill(stack, null);
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    int globalSlot(String name)
+    {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+
+        int index = globalSlots.size();
+        if (index == globals.length)
+        {
+            globals = Arrays.copyOf(globals, index * 2);
+            globalNames = Arrays.copyOf(globalNames, index * 2);
+        }
+        globals[index] = UNDEFINED;
+        globalNames[index] = name;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    private void defineNative(String name, int arity, ObjNative.NativeFn function)
+    {
+        globals[globalSlot(name)] = new ObjNative(arity, function);
+    }
+
+    private void ensureStack(int size)
+    {
+        if (size > stack.length)
+        {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+    }
+
+    private CallFrame pushFrame(ObjClosure closure, int base)
+    {
+        if (frameCount == frames.length)
+        {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) frame = frames[frameCount] = new CallFrame();
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        return frame;
+    }
+
+    private void run()
+    {
+        CallFrame frame = frames[frameCount - 1];
+        Object[] stack = this.stack;
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constantTable;
+        int ip = 0;
+        int base = 0;
+        int sp = 1;
+
+        try
+        {
+            for (; ; )
+            {
+                switch (code[ip++])
+                {
+                    case OP_CONSTANT:
+                        stack[sp++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        break;
+                    case OP_NIL:
+                        stack[sp++] = null;
+                        break;
+                    case OP_TRUE:
+                        stack[sp++] = true;
+                        break;
+                    case OP_FALSE:
+                        stack[sp++] = false;
+                        break;
+                    case OP_UNINITIALIZED:
+                        stack[sp++] = UNINITIALIZED;
+                        break;
+                    case OP_POP:
+                        sp--;
+                        break;
+                    case OP_GET_LOCAL:
+                        stack[sp++] = stack[base + (code[ip++] & 0xff)];
+                        break;
+                    case OP_SET_LOCAL:
+                        stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                        break;
+                    case OP_GET_GLOBAL:
+                    {
+                        int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        Object value = globals[slot];
+                        if (value == UNDEFINED)
+                        {
+                            throw new RuntimeError("Undefined variable '" + globalNames[slot] + "'.");
+                        }
+                        stack[sp++] = value;
+                        break;
+                    }
+                    case OP_DEFINE_GLOBAL:
+                        globals[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)] = stack[--sp];
+                        ip += 2;
+                        break;
+                    case OP_SET_GLOBAL:
+                    {
+                        int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (globals[slot] == UNDEFINED)
+                        {
+                            throw new RuntimeError("Undefined variable '" + globalNames[slot] + "'.");
+                        }
+                        globals[slot] = stack[sp - 1];
+                        break;
+                    }
+                    case OP_GET_UPVALUE:
+                    {
+                        ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        stack[sp++] = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+                        break;
+                    }
+                    case OP_SET_UPVALUE:
+                    {
+                        ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        if (upvalue.slot >= 0) stack[upvalue.slot] = stack[sp - 1];
+                        else upvalue.closed = stack[sp - 1];
+                        break;
+                    }
+                    case OP_NIL_IF_UNINITIALIZED:
+                        if (stack[sp - 1] == UNINITIALIZED) stack[sp - 1] = null;
+                        break;
+                    case OP_CHECK_INITIALIZED:
+                    {
+                        Object name = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        if (stack[sp - 1] == UNINITIALIZED)
+                        {
+                            throw new RuntimeError("Uninitialized variable '" + name + "'.");
+                        }
+                        break;
+                    }
+                    case OP_GET_PROPERTY:
+                    {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        if (!(stack[sp - 1] instanceof ObjInstance))
+                        {
+                            throw new RuntimeError("Only instances have properties.");
+                        }
+                        ObjInstance instance = (ObjInstance) stack[sp - 1];
+                        // 字段可能会覆盖方法
+                        Object value = instance.fields.getOrDefault(name, UNDEFINED);
+                        if (value != UNDEFINED)
+                        {
+                            stack[sp - 1] = value;
+                            break;
+                        }
+                        ObjClosure method = instance.klass.methods.get(name);
+                        if (method == null) throw new RuntimeError("Undefined property '" + name + "'.");
+                        stack[sp - 1] = new ObjBoundMethod(instance, method);
+                        break;
+                    }
+                    case OP_CHECK_INSTANCE:
+                        if (!(stack[sp - 1] instanceof ObjInstance))
+                        {
+                            throw new RuntimeError("Only instances have fields.");
+                        }
+                        break;
+                    case OP_SET_PROPERTY:
+                    {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        if (!(stack[sp - 2] instanceof ObjInstance))
+                        {
+                            throw new RuntimeError("Only instances have fields.");
+                        }
+                        Object value = stack[--sp];
+                        ((ObjInstance) stack[sp - 1]).fields.put(name, value);
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    case OP_GET_SUPER:
+                    {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ObjClass superclass = (ObjClass) stack[--sp];
+                        ObjClosure method = superclass.methods.get(name);
+                        if (method == null) throw new RuntimeError("Undefined property '" + name + "'.");
+                        stack[sp - 1] = new ObjBoundMethod(stack[sp - 1], method);
+                        break;
+                    }
+                    case OP_EQUAL:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = a.equals(b);
+                        break;
+                    }
+                    case OP_NOT_EQUAL:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = !a.equals(b);
+                        break;
+                    }
+                    case OP_GREATER:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double) a > (double) b;
+                        break;
+                    }
+                    case OP_GREATER_EQUAL:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double) a >= (double) b;
+                        break;
+                    }
+                    case OP_LESS:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double) a < (double) b;
+                        break;
+                    }
+                    case OP_LESS_EQUAL:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double) a <= (double) b;
+                        break;
+                    }
+                    case OP_ADD:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double)
+                        {
+                            stack[sp - 1] = (double) a + (double) b;
+                        } else if (a instanceof String && b instanceof String)
+                        {
+                            stack[sp - 1] = (String) a + (String) b;
+                        } else if (a instanceof String && b instanceof Double)
+                        {
+                            stack[sp - 1] = (String) a + stringify(b);
+                        } else if (a instanceof Double && b instanceof String)
+                        {
+                            stack[sp - 1] = stringify(a) + (String) b;
+                        } else
+                        {
+                            throw new RuntimeError("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OP_SUBTRACT:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double) a - (double) b;
+                        break;
+                    }
+                    case OP_MULTIPLY:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double) a * (double) b;
+                        break;
+                    }
+                    case OP_DIVIDE:
+                    {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        if ((double) b == 0) throw new RuntimeError("Divide by zero.");
+                        stack[sp - 1] = (double) a / (double) b;
+                        break;
+                    }
+                    case OP_NOT:
+                        stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                        break;
+                    case OP_NEGATE:
+                        if (!(stack[sp - 1] instanceof Double)) throw new RuntimeError("Operand must be a number.");
+                        stack[sp - 1] = -(double) stack[sp - 1];
+                        break;
+                    case OP_SELECT:
+                    {
+                        // 与解释器一致，三个运算数都已经求值
+                        Object right = stack[--sp];
+                        Object left = stack[--sp];
+                        stack[sp - 1] = isTruthy(stack[sp - 1]) ? left : right;
+                        break;
+                    }
+                    case OP_PRINT:
+                    case OP_ECHO:
+                        System.out.println(stringify(stack[--sp]));
+                        break;
+                    case OP_JUMP:
+                        ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+                        break;
+                    case OP_JUMP_IF_FALSE:
+                        if (isTruthy(stack[sp - 1])) ip += 2;
+                        else ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+                        break;
+                    case OP_LOOP:
+                        ip -= (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) - 2;
+                        break;
+                    case OP_CALL:
+                    case OP_TAIL_CALL:
+                    {
+                        boolean isTailCall = code[ip - 1] == OP_TAIL_CALL;
+                        int argCount = code[ip++] & 0xff;
+                        int calleeSlot = sp - argCount - 1;
+                        Object callee = stack[calleeSlot];
+                        ObjClosure closure;
+                        if (callee instanceof ObjClosure)
+                        {
+                            closure = (ObjClosure) callee;
+                        } else if (callee instanceof ObjBoundMethod)
+                        {
+                            ObjBoundMethod bound = (ObjBoundMethod) callee;
+                            stack[calleeSlot] = bound.receiver;
+                            closure = bound.method;
+                        } else if (callee instanceof ObjClass)
+                        {
+                            ObjClass klass = (ObjClass) callee;
+                            closure = klass.methods.get("init");
+                            if (closure == null)
+                            {
+                                if (argCount != 0)
+                                {
+                                    throw new RuntimeError("Expected 0 arguments but got " + argCount + ".");
+                                }
+                                stack[calleeSlot] = new ObjInstance(klass);
+                                break;
+                            }
+                            if (argCount != closure.function.arity)
+                            {
+                                throw new RuntimeError("Expected " + closure.function.arity + " arguments but got " +
+                                                               argCount + ".");
+                            }
+                            stack[calleeSlot] = new ObjInstance(klass);
+                        } else if (callee instanceof ObjNative)
+                        {
+                            ObjNative function = (ObjNative) callee;
+                            if (argCount != function.arity)
+                            {
+                                throw new RuntimeError("Expected " + function.arity + " arguments but got " +
+                                                               argCount + ".");
+                            }
+                            Object result = function.function.call(Arrays.copyOfRange(stack, sp - argCount, sp));
+                            sp = calleeSlot;
+                            stack[sp++] = result;
+                            break;
+                        } else
+                        {
+                            throw new RuntimeError("Can only call functions and classes.");
+                        }
+
+                        ObjFunction function = closure.function;
+                        if (argCount != function.arity)
+                        {
+                            throw new RuntimeError("Expected " + function.arity + " arguments but got " +
+                                                           argCount + ".");
+                        }
+                        if (isTailCall)
+                        {
+                            // 当前函数已经用不到自己的局部变量：关闭 upvalue，把被调用者和参数移到帧底，复用这一帧
+                            closeUpvalues(base);
+                            int size = argCount + 1;
+                            System.arraycopy(stack, calleeSlot, stack, base, size);
+                            Arrays.fill(stack, base + size, sp, null);
+                            sp = base + size;
+                            if (base + function.maxStack > stack.length)
+                            {
+                                ensureStack(base + function.maxStack);
+                                stack = this.stack;
+                            }
+                            frame.closure = closure;
+                            code = function.chunk.code;
+                            constants = function.chunk.constantTable;
+                            ip = 0;
+                            break;
+                        }
+                        if (frameCount == maxDepth) throw new RuntimeError("Stack overflow.");
+                        if (calleeSlot + function.maxStack > stack.length)
+                        {
+                            ensureStack(calleeSlot + function.maxStack);
+                            stack = this.stack;
+                        }
+
+                        frame.ip = ip;
+                        frame = pushFrame(closure, calleeSlot);
+                        code = function.chunk.code;
+                        constants = function.chunk.constantTable;
+                        ip = 0;
+                        base = calleeSlot;
+                        break;
+                    }
+                    case OP_CLOSURE:
+                    {
+                        ObjFunction function = (ObjFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ObjClosure closure = new ObjClosure(function);
+                        for (int i = 0; i < closure.upvalues.length; i++)
+                        {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++] & 0xff;
+                            closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                        }
+                        stack[sp++] = closure;
+                        break;
+                    }
+                    case OP_CLOSE_UPVALUE:
+                        closeUpvalues(sp - 1);
+                        sp--;
+                        break;
+                    case OP_RETURN:
+                    {
+                        Object result = stack[--sp];
+                        closeUpvalues(base);
+                        frameCount--;
+                        if (frameCount == 0) return;
+
+                        Arrays.fill(stack, base, sp, null);
+                        sp = base;
+                        stack[sp++] = result;
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constantTable;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OP_CLASS:
+                        stack[sp++] = new ObjClass((String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                        ip += 2;
+                        break;
+                    case OP_CHECK_SUPERCLASS:
+                        if (!(stack[--sp] instanceof ObjClass)) throw new RuntimeError("Superclass must be a class.");
+                        break;
+                    case OP_INHERIT:
+                    {
+                        // 子类的方法还没有加入，父类的方法先复制进来，之后会被同名方法覆盖
+                        ObjClass subclass = (ObjClass) stack[--sp];
+                        subclass.methods.putAll(((ObjClass) stack[sp - 1]).methods);
+                        break;
+                    }
+                    case OP_METHOD:
+                    {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ((ObjClass) stack[sp - 2]).methods.put(name, (ObjClosure) stack[--sp]);
+                        break;
+                    }
+                }
+            }
+        } finally
+        {
+            // 出错时行号按当前帧的 ip 查找
+            frame.ip = ip;
+        }
+    }
+
+    private ObjUpvalue captureUpvalue(int slot)
+    {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot)
+        {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot, upvalue);
+        if (previous == null) openUpvalues = created;
+        else previous.next = created;
+        return created;
+    }
+
+    private void closeUpvalues(int last)
+    {
+        while (openUpvalues != null && openUpvalues.slot >= last)
+        {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private static void checkNumberOperands(Object left, Object right)
+    {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError("Operands must be numbers.");
+    }
+
+    private static boolean isTruthy(Object object)
+    {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private static String stringify(Object object)
+    {
+        if (object == null) return "nil";
+
+        if (object instanceof Double)
+        {
+            String text = object.toString();
+            if (text.endsWith(".0"))
+            {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+
+        return object.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+#!/bin/sh
+# 回归测试：编译 com 下的源代码，用每一种执行方式运行 test 下的 .lox 文件，
+# 标准输出、标准错误和退出码与同名的 .expected 文件比较。所有执行方式的结果必须完全相同。
+# 用法：test/run.sh [名字...]，不给名字时运行全部；生成期望结果用 test/run.sh --update [名字...]
+
+cd "$(dirname "$0")/.." || exit 1
+
+update=false
+if [ "$1" = "--update" ]; then
+    update=true
+    shift
+fi
+
+classes=$(mktemp -d) || exit 1
+trap 'rm -rf "$classes"' EXIT
+javac -encoding UTF-8 -d "$classes" $(find com -name '*.java') || exit 1
+
+if [ $# -eq 0 ]; then
+    set -- $(ls test/*.lox | sed 's|^test/||; s|\.lox$||')
+fi
+
+# 每行一种选项组合：四种执行方式，以及关掉优化器和内联之后的同样几种
+configs='
+--no-optimize
+--no-inline
+--no-optimize --no-inline
+--compile
+--compile --no-optimize --no-inline
+--vm
+--vm --no-optimize --no-inline
+--jit=1
+--jit=3
+--jit=1 --no-optimize --no-inline'
+
+# 使用 JVM 默认的栈大小，所有执行方式都必须消除尾调用
+run()
+{
+    java -cp "$classes" com.craftinginterpreters.lox.Lox "$@" 2>&1
+    echo "exit $?"
+}
+
+failed=0
+for name in "$@"; do
+    script=test/$name.lox
+    expected=test/$name.expected
+    if $update; then
+        run "$script" > "$expected"
+        continue
+    fi
+    # 第一项为空，表示不带任何选项
+    echo "$configs" | while IFS= read -r options; do
+        if ! run $options "$script" | diff -u "$expected" - > /dev/null; then
+            echo "FAIL $name ${options:-(default)}"
+            run $options "$script" | diff -u "$expected" - | head -20
+        fi
+    done > "$classes/result"
+    if [ -s "$classes/result" ]; then
+        cat "$classes/result"
+        failed=$((failed + 1))
+    fi
+done
+
+if $update; then exit 0; fi
+if [ $failed -ne 0 ]; then
+    echo "$failed of $# tests failed."
+    exit 1
+fi
+echo "All $# tests passed."